@@ -0,0 +1,26 @@
+package com.euge.kafka;
+
+import java.util.Arrays;
+
+import org.springframework.kafka.test.EmbeddedKafkaBroker;
+
+// Ejecuta el generador de carga contra un broker embebido, sin necesidad de
+// levantar Kafka. Los argumentos se pasan a la aplicacion, por ejemplo:
+// mvn -Pjmh test-compile exec:java -Dexec.classpathScope=test
+// -Dexec.mainClass=com.euge.kafka.EmbeddedLoadGenerator
+// -Dexec.args="--loadgen.rate=5000 --loadgen.durationSeconds=30"
+public class EmbeddedLoadGenerator {
+
+	public static void main(String[] args) throws Exception {
+		final EmbeddedKafkaBroker broker = new EmbeddedKafkaBroker(1, false, 5);
+		broker.afterPropertiesSet();
+		try {
+			final String[] appArgs = Arrays.copyOf(args, args.length + 2);
+			appArgs[args.length] = "--kafka.bootstrapAddress=" + broker.getBrokersAsString();
+			appArgs[args.length + 1] = "--loadgen.enabled=true";
+			KafkaApplication.main(appArgs);
+		} finally {
+			broker.destroy();
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package com.euge.kafka;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.kafka.core.DefaultKafkaConsumerFactory;
+import org.springframework.kafka.core.DefaultKafkaProducerFactory;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.listener.ContainerProperties;
+import org.springframework.kafka.listener.KafkaMessageListenerContainer;
+import org.springframework.kafka.listener.MessageListener;
+import org.springframework.kafka.test.EmbeddedKafkaBroker;
+import org.springframework.kafka.test.utils.ContainerTestUtils;
+import org.springframework.kafka.test.utils.KafkaTestUtils;
+
+// Produce y consume mensajes contra un broker embebido. El tiempo incluye el
+// envio con KafkaTemplate y la entrega al listener del contenedor
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class EndToEndBenchmark {
+
+	private static final String TOPIC = "benchmark";
+
+	private static final int MESSAGES = 1000;
+
+	private EmbeddedKafkaBroker broker;
+	private DefaultKafkaProducerFactory<String, String> producerFactory;
+	private KafkaTemplate<String, String> template;
+	private KafkaMessageListenerContainer<String, String> container;
+
+	private volatile CountDownLatch received;
+
+	@Setup
+	public void setup() throws Exception {
+		broker = new EmbeddedKafkaBroker(1, true, 1, TOPIC);
+		broker.afterPropertiesSet();
+
+		final Map<String, Object> producerProps = KafkaTestUtils.producerProps(broker);
+		producerFactory = new DefaultKafkaProducerFactory<>(producerProps, new StringSerializer(),
+				new StringSerializer());
+		template = new KafkaTemplate<>(producerFactory);
+
+		final Map<String, Object> consumerProps = KafkaTestUtils.consumerProps("benchmark", "false", broker);
+		final DefaultKafkaConsumerFactory<String, String> consumerFactory = new DefaultKafkaConsumerFactory<>(
+				consumerProps, new StringDeserializer(), new StringDeserializer());
+		final ContainerProperties containerProps = new ContainerProperties(TOPIC);
+		containerProps.setMessageListener((MessageListener<String, String>) record -> received.countDown());
+		container = new KafkaMessageListenerContainer<>(consumerFactory, containerProps);
+		received = new CountDownLatch(0);
+		container.start();
+		ContainerTestUtils.waitForAssignment(container, 1);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(MESSAGES)
+	public void produceAndConsume() throws InterruptedException {
+		received = new CountDownLatch(MESSAGES);
+		for (int i = 0; i < MESSAGES; i++) {
+			template.send(TOPIC, String.valueOf(i), "Mensaje " + i);
+		}
+		template.flush();
+		if (!received.await(30, TimeUnit.SECONDS))
+			throw new IllegalStateException("quedan " + received.getCount() + " mensajes sin consumir");
+	}
+
+	@TearDown
+	public void tearDown() {
+		container.stop();
+		producerFactory.destroy();
+		broker.destroy();
+	}
+}
@@ -0,0 +1,88 @@
+package com.euge.kafka;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.kafka.common.serialization.Serializer;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.kafka.support.serializer.JsonDeserializer;
+import org.springframework.kafka.support.serializer.JsonSerializer;
+
+// Compara el coste de (de)serializar un Greeting como String, como JSON (el
+// formato por defecto del topico greeting) y con GreetingSerializer
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GreetingSerializationBenchmark {
+
+	private static final String TOPIC = "greeting";
+
+	@Param({ "string", "json", "binary" })
+	private String format;
+
+	private final Greeting greeting = new Greeting("Greetings", "World!");
+
+	private Serializer<Object> serializer;
+	private Deserializer<?> deserializer;
+	private byte[] serialized;
+
+	@Setup
+	@SuppressWarnings("unchecked")
+	public void setup() {
+		switch (format) {
+		case "string":
+			// El String equivalente al Greeting, como referencia
+			final StringSerializer stringSerializer = new StringSerializer();
+			serializer = (topic, data) -> stringSerializer.serialize(topic, data.toString());
+			deserializer = new StringDeserializer();
+			break;
+		case "json":
+			serializer = (Serializer<Object>) (Serializer<?>) new JsonSerializer<Greeting>();
+			deserializer = new JsonDeserializer<>(Greeting.class);
+			break;
+		case "binary":
+			serializer = (Serializer<Object>) (Serializer<?>) new GreetingSerializer();
+			deserializer = new GreetingDeserializer();
+			break;
+		default:
+			throw new IllegalArgumentException(format);
+		}
+		serialized = serializer.serialize(TOPIC, greeting);
+	}
+
+	// Tamaño del mensaje serializado. Sale en jmh-result.json como
+	// serialize:bytesPerMessage junto al tiempo de cada formato
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class MessageSize {
+		public long bytesPerMessage;
+	}
+
+	@Benchmark
+	public byte[] serialize(final MessageSize size) {
+		final byte[] data = serializer.serialize(TOPIC, greeting);
+		size.bytesPerMessage = data.length;
+		return data;
+	}
+
+	@Benchmark
+	public Object deserialize() {
+		return deserializer.deserialize(TOPIC, serialized);
+	}
+}
@@ -0,0 +1,212 @@
+package com.euge.kafka;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.LoggerFactory;
+import org.springframework.kafka.core.DefaultKafkaConsumerFactory;
+import org.springframework.kafka.core.DefaultKafkaProducerFactory;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.listener.ConcurrentMessageListenerContainer;
+import org.springframework.kafka.listener.ContainerProperties;
+import org.springframework.kafka.listener.MessageListener;
+import org.springframework.kafka.test.EmbeddedKafkaBroker;
+import org.springframework.kafka.test.utils.ContainerTestUtils;
+import org.springframework.kafka.test.utils.KafkaTestUtils;
+
+import ch.qos.logback.classic.AsyncAppender;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.FileAppender;
+
+// Coste de registrar cada mensaje en los listener. Tres hilos consumidores
+// registran los mensajes que llegan del broker embebido, como MessageListener,
+// con el patron de logback.xml. La salida va a un fichero temporal, como una
+// consola redirigida, para no llenar la salida de JMH:
+// - blocking: el appender directamente, como en logback.xml
+// - async: detras de un AsyncAppender que no bloquea (neverBlock) y descarta
+// cuando la cola esta llena
+// produceAndConsume:lines son las lineas que se registran por segundo y
+// produceAndConsume:written las que llegan al fichero; la diferencia son los
+// eventos que ha descartado el AsyncAppender
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class LoggingBenchmark {
+
+	private static final String TOPIC = "logging";
+
+	private static final int PARTITIONS = 3;
+
+	private static final int MESSAGES = 1000;
+
+	@Param({ "blocking", "async" })
+	private String appender;
+
+	@Param({ "1", "100" })
+	private int sampleRate;
+
+	private EmbeddedKafkaBroker broker;
+	private DefaultKafkaProducerFactory<String, String> producerFactory;
+	private KafkaTemplate<String, String> template;
+	private ConcurrentMessageListenerContainer<String, String> container;
+
+	private File output;
+	private Logger logger;
+	private Appender<ILoggingEvent> logAppender;
+
+	private final AtomicLong lines = new AtomicLong();
+	private final AtomicLong written = new AtomicLong();
+
+	private volatile CountDownLatch received;
+
+	@Setup
+	public void setup() throws Exception {
+		output = File.createTempFile("logging-benchmark", ".log");
+		logger = listenerLogger();
+
+		broker = new EmbeddedKafkaBroker(1, true, PARTITIONS, TOPIC);
+		broker.afterPropertiesSet();
+
+		final Map<String, Object> producerProps = KafkaTestUtils.producerProps(broker);
+		producerFactory = new DefaultKafkaProducerFactory<>(producerProps, new StringSerializer(),
+				new StringSerializer());
+		template = new KafkaTemplate<>(producerFactory);
+
+		final Map<String, Object> consumerProps = KafkaTestUtils.consumerProps("logging", "false", broker);
+		final DefaultKafkaConsumerFactory<String, String> consumerFactory = new DefaultKafkaConsumerFactory<>(
+				consumerProps, new StringDeserializer(), new StringDeserializer());
+		final ContainerProperties containerProps = new ContainerProperties(TOPIC);
+		containerProps.setMessageListener((MessageListener<String, String>) record -> {
+			if (sampled()) {
+				lines.incrementAndGet();
+				logger.info("Mensaje: {} en la particion {}", record.value(), record.partition());
+			}
+			received.countDown();
+		});
+		container = new ConcurrentMessageListenerContainer<>(consumerFactory, containerProps);
+		container.setConcurrency(PARTITIONS);
+		received = new CountDownLatch(0);
+		container.start();
+		ContainerTestUtils.waitForAssignment(container, PARTITIONS);
+	}
+
+	// Logger propio, con el appender del parametro, para no depender de la
+	// configuración de logback.xml
+	private Logger listenerLogger() {
+		final LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+		final PatternLayoutEncoder encoder = new PatternLayoutEncoder();
+		encoder.setContext(context);
+		encoder.setPattern("%d{HH:mm:ss.SSS} [%thread] %-5level %logger{36} - %msg%n");
+		encoder.start();
+
+		final FileAppender<ILoggingEvent> file = new FileAppender<ILoggingEvent>() {
+			@Override
+			protected void subAppend(ILoggingEvent event) {
+				super.subAppend(event);
+				written.incrementAndGet();
+			}
+		};
+		file.setContext(context);
+		file.setName("FILE");
+		file.setFile(output.getAbsolutePath());
+		file.setAppend(false);
+		file.setEncoder(encoder);
+		file.start();
+
+		if ("async".equals(appender)) {
+			// Con neverBlock y discardingThreshold a 0, si la cola se llena los eventos
+			// se descartan, sea cual sea su nivel
+			final AsyncAppender async = new AsyncAppender();
+			async.setContext(context);
+			async.setName("ASYNC");
+			async.setQueueSize(8192);
+			async.setDiscardingThreshold(0);
+			async.setNeverBlock(true);
+			async.addAppender(file);
+			async.start();
+			logAppender = async;
+		} else
+			logAppender = file;
+
+		final Logger logger = context.getLogger("com.euge.kafka.LoggingBenchmark.listener");
+		logger.setLevel(ch.qos.logback.classic.Level.INFO);
+		logger.setAdditive(false);
+		logger.addAppender(logAppender);
+		return logger;
+	}
+
+	// Igual que MessageListener.sampled()
+	private boolean sampled() {
+		return logger.isInfoEnabled()
+				&& (sampleRate <= 1 || ThreadLocalRandom.current().nextInt(sampleRate) < 1);
+	}
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Logged {
+
+		public long lines;
+
+		public long written;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			lines = 0;
+			written = 0;
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(MESSAGES)
+	public void produceAndConsume(Logged logged) throws InterruptedException {
+		final long linesBefore = lines.get();
+		final long writtenBefore = written.get();
+		received = new CountDownLatch(MESSAGES);
+		for (int i = 0; i < MESSAGES; i++) {
+			template.send(TOPIC, String.valueOf(i), "Mensaje " + i);
+		}
+		template.flush();
+		if (!received.await(30, TimeUnit.SECONDS))
+			throw new IllegalStateException("quedan " + received.getCount() + " mensajes sin consumir");
+		logged.lines += lines.get() - linesBefore;
+		logged.written += written.get() - writtenBefore;
+	}
+
+	@TearDown
+	public void tearDown() {
+		container.stop();
+		producerFactory.destroy();
+		broker.destroy();
+		logger.detachAppender(logAppender);
+		logAppender.stop();
+		output.delete();
+	}
+}
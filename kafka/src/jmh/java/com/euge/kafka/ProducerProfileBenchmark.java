@@ -0,0 +1,71 @@
+package com.euge.kafka;
+
+import java.util.Map;
+
+import org.apache.kafka.common.Metric;
+import org.apache.kafka.common.MetricName;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.test.EmbeddedKafkaBroker;
+
+// Envia el mismo millon de registros con el perfil de productor default y con el
+// perfil throughput (kafka.producer.profile), usando el KafkaTemplate de la
+// aplicación contra un broker embebido. Para cada perfil muestra los registros
+// por segundo hasta que se confirman todos los envios, el tamaño medio de los
+// lotes y la compresion conseguida. El primer argumento es el numero de
+// registros; el resto se pasa a la aplicación, por ejemplo:
+// mvn -Pjmh test-compile exec:java -Dexec.classpathScope=test
+// -Dexec.mainClass=com.euge.kafka.ProducerProfileBenchmark
+// -Dexec.args="1000000 --kafka.producer.throughput.lingerMs=50"
+public class ProducerProfileBenchmark {
+
+	private static final String TOPIC = "producer-profile";
+
+	public static void main(String[] args) throws Exception {
+		final int records = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+		final EmbeddedKafkaBroker broker = new EmbeddedKafkaBroker(1, false, 5, TOPIC);
+		broker.afterPropertiesSet();
+		try {
+			for (final String profile : new String[] { "default", "throughput" }) {
+				// Una pasada de calentamiento y otra medida, cada perfil en su contexto
+				run(broker, profile, records / 10, args);
+				final String report = run(broker, profile, records, args);
+				System.out.println("profile=" + profile + " " + report);
+			}
+		} finally {
+			broker.destroy();
+		}
+	}
+
+	private static String run(EmbeddedKafkaBroker broker, String profile, int records, String[] args) {
+		final String[] appArgs = new String[Math.max(args.length - 1, 0) + 2];
+		if (args.length > 1)
+			System.arraycopy(args, 1, appArgs, 0, args.length - 1);
+		appArgs[appArgs.length - 2] = "--kafka.bootstrapAddress=" + broker.getBrokersAsString();
+		appArgs[appArgs.length - 1] = "--kafka.producer.profile=" + profile;
+		try (ConfigurableApplicationContext context = new SpringApplicationBuilder(KafkaApplication.class)
+				.run(appArgs)) {
+			@SuppressWarnings("unchecked")
+			final KafkaTemplate<String, String> template = context.getBean("kafkaTemplate", KafkaTemplate.class);
+			final String value = String.format("%100s", "").replace(' ', 'x');
+			final long start = System.nanoTime();
+			for (int i = 0; i < records; i++)
+				template.send(TOPIC, Integer.toString(i % 1000), value);
+			template.flush();
+			final double seconds = (System.nanoTime() - start) / 1e9;
+			final Map<MetricName, ? extends Metric> metrics = template.metrics();
+			return String.format("records=%d recordsPerSecond=%.0f batchSizeAvg=%.0f compressionRateAvg=%.2f",
+					records, records / seconds, metric(metrics, "batch-size-avg"),
+					metric(metrics, "compression-rate-avg"));
+		}
+	}
+
+	private static double metric(Map<MetricName, ? extends Metric> metrics, String name) {
+		for (final Map.Entry<MetricName, ? extends Metric> entry : metrics.entrySet()) {
+			if (entry.getKey().name().equals(name) && "producer-metrics".equals(entry.getKey().group()))
+				return ((Number) entry.getValue().metricValue()).doubleValue();
+		}
+		return Double.NaN;
+	}
+}
@@ -0,0 +1,98 @@
+package com.euge.kafka;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.record.TimestampType;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.kafka.listener.adapter.RecordFilterStrategy;
+
+// Coste del filtro de filterKafkaListenerContainerFactory segun el tamaño del
+// mensaje. La mitad de los mensajes contiene "World", al final del texto.
+// stringFilter deserializa cada mensaje y busca con String.contains;
+// bytesFilter descarta sobre los bytes con DiscardingDeserializer
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecordFilterBenchmark {
+
+	private static final int RECORDS = 1024;
+
+	// El filtro que usaba filterKafkaListenerContainerFactory sobre el valor ya
+	// deserializado. Devuelve true para los registros que se descartan
+	private static final RecordFilterStrategy<String, String> FILTER_WORLD = record -> record.value()
+			.contains("World");
+
+	private static final String TOPIC = "filtered";
+
+	@Param({ "16", "256", "4096" })
+	private int payloadSize;
+
+	private final List<byte[]> payloads = new ArrayList<>();
+
+	private final StringDeserializer stringDeserializer = new StringDeserializer();
+
+	private final DiscardingDeserializer<String> discardingDeserializer = new DiscardingDeserializer<>(
+			new StringDeserializer(), new BytePatternMatcher("World"), null);
+
+	@Setup
+	public void setup() {
+		final Random random = new Random(42);
+		for (int i = 0; i < RECORDS; i++) {
+			final StringBuilder sb = new StringBuilder(payloadSize);
+			while (sb.length() < payloadSize - 5)
+				sb.append((char) ('a' + random.nextInt(26)));
+			sb.append(i % 2 == 0 ? "World" : "Hello");
+			payloads.add(sb.toString().getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(RECORDS)
+	public int stringFilter() {
+		int discarded = 0;
+		for (int i = 0; i < RECORDS; i++) {
+			final String value = stringDeserializer.deserialize(TOPIC, payloads.get(i));
+			if (FILTER_WORLD.filter(new ConsumerRecord<>(TOPIC, 0, i, null, value)))
+				discarded++;
+		}
+		return discarded;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(RECORDS)
+	public int bytesFilter() {
+		int discarded = 0;
+		for (int i = 0; i < RECORDS; i++) {
+			// Como en el consumidor, las cabeceras se crean antes de deserializar para
+			// que el deserializador pueda marcar el registro
+			final RecordHeaders headers = new RecordHeaders();
+			final String value = discardingDeserializer.deserialize(TOPIC, headers, payloads.get(i));
+			if (KafkaConsumerConfig.FILTER_DISCARDED.filter(new ConsumerRecord<>(TOPIC, 0, i,
+					ConsumerRecord.NO_TIMESTAMP, TimestampType.NO_TIMESTAMP_TYPE, null, ConsumerRecord.NULL_SIZE,
+					ConsumerRecord.NULL_SIZE, null, value, headers)))
+				discarded++;
+		}
+		return discarded;
+	}
+}
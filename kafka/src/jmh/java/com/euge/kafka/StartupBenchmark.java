@@ -0,0 +1,63 @@
+package com.euge.kafka;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.springframework.kafka.test.EmbeddedKafkaBroker;
+import org.springframework.kafka.test.utils.KafkaTestUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+// Mide el arranque en frio de la aplicación, con y sin kafka.fastStart: tiempo
+// hasta el primer registro recibido y RSS en ese momento. Cada arranque es una
+// JVM nueva contra un broker embebido; antes de cada uno se publica un mensaje
+// en el topico partitioned, que el grupo partitionsAll lee desde el principio.
+// mvn -Pjmh test-compile exec:java -Dexec.classpathScope=test
+// -Dexec.mainClass=com.euge.kafka.StartupBenchmark -Dexec.args="5"
+public class StartupBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		final int runs = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+		final EmbeddedKafkaBroker broker = new EmbeddedKafkaBroker(1, false, 5, "partitioned");
+		broker.afterPropertiesSet();
+		final Map<String, Object> producerProps = KafkaTestUtils.producerProps(broker);
+		try (KafkaProducer<String, String> producer = new KafkaProducer<>(producerProps, new StringSerializer(),
+				new StringSerializer())) {
+			for (final boolean fastStart : new boolean[] { false, true }) {
+				for (int i = 0; i < runs; i++) {
+					producer.send(new ProducerRecord<>("partitioned", "startup", "Mensaje " + i)).get();
+					final Map<?, ?> report = run(broker.getBrokersAsString(), fastStart);
+					System.out.println("fastStart=" + fastStart + " " + report);
+				}
+			}
+		} finally {
+			broker.destroy();
+		}
+	}
+
+	private static Map<?, ?> run(String bootstrap, boolean fastStart) throws IOException, InterruptedException {
+		final File output = File.createTempFile("startup", ".json");
+		output.deleteOnExit();
+		final List<String> command = new ArrayList<>(Arrays.asList(
+				System.getProperty("java.home") + File.separator + "bin" + File.separator + "java", "-cp",
+				System.getProperty("java.class.path"), KafkaApplication.class.getName(),
+				"--kafka.bootstrapAddress=" + bootstrap, "--kafka.fastStart=" + fastStart,
+				"--kafka.consumer.groups[partitionsAll][auto.offset.reset]=earliest",
+				"--startup.output=" + output.getAbsolutePath(), "--startup.exitAfterFirstRecord=true"));
+		final Process process = new ProcessBuilder(command).redirectErrorStream(true)
+				.redirectOutput(ProcessBuilder.Redirect.INHERIT).start();
+		if (!process.waitFor(2, TimeUnit.MINUTES)) {
+			process.destroyForcibly();
+			throw new IllegalStateException("La aplicación no recibio ningun registro en 2 minutos");
+		}
+		return new ObjectMapper().readValue(output, Map.class);
+	}
+}
@@ -0,0 +1,120 @@
+package com.euge.kafka;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.kafka.config.KafkaListenerEndpointRegistry;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.listener.MessageListenerContainer;
+import org.springframework.kafka.test.EmbeddedKafkaBroker;
+import org.springframework.kafka.test.utils.ContainerTestUtils;
+import org.springframework.kafka.test.utils.KafkaTestUtils;
+
+// Mensajes por segundo del pipeline transaccional para distintos tamaños de
+// transacción (kafka.transaction.batchSize). Arranca la aplicación contra un
+// broker embebido con kafka.transaction.enabled=true y solo deja en marcha el
+// listener transform, con transactionalKafkaListenerContainerFactory. Cada
+// invocación publica los mensajes en el topico partitioned y espera a leerlos,
+// con read_committed, en el topico transformed: el tiempo incluye el consumo,
+// el envio transaccional y la confirmación de cada transacción
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class TransactionBatchBenchmark {
+
+	private static final int MESSAGES = 1000;
+
+	@Param({ "1", "10", "100", "1000" })
+	private int batchSize;
+
+	private EmbeddedKafkaBroker broker;
+	private ConfigurableApplicationContext context;
+	private KafkaTemplate<String, String> template;
+	private Consumer<String, String> output;
+
+	private String inputTopic;
+
+	@Setup
+	@SuppressWarnings("unchecked")
+	public void setup() throws Exception {
+		broker = new EmbeddedKafkaBroker(1, false)
+				.brokerProperty("transaction.state.log.replication.factor", "1")
+				.brokerProperty("transaction.state.log.min.isr", "1");
+		broker.afterPropertiesSet();
+		context = new SpringApplicationBuilder(KafkaApplication.class).web(WebApplicationType.NONE).run(
+				"--kafka.bootstrapAddress=" + broker.getBrokersAsString(), "--kafka.transaction.enabled=true",
+				"--kafka.transaction.batchSize=" + batchSize, "--listener.log.sampleRate=1000000");
+		inputTopic = context.getEnvironment().getProperty("partitioned.topic.name");
+		final String outputTopic = context.getEnvironment().getProperty("transformed.topic.name");
+		template = context.getBean("kafkaTemplate", KafkaTemplate.class);
+
+		// El resto de listener de la aplicación no intervienen
+		MessageListenerContainer transform = null;
+		for (final MessageListenerContainer container : context.getBean(KafkaListenerEndpointRegistry.class)
+				.getListenerContainers()) {
+			if ("transform".equals(container.getGroupId()))
+				transform = container;
+			else
+				container.stop();
+		}
+		ContainerTestUtils.waitForAssignment(transform,
+				Integer.parseInt(context.getEnvironment().getProperty("partitioned.topic.partitions")));
+
+		final Map<String, Object> consumerProps = KafkaTestUtils.consumerProps("transaction-benchmark", "false",
+				broker);
+		consumerProps.put(ConsumerConfig.ISOLATION_LEVEL_CONFIG, "read_committed");
+		output = new KafkaConsumer<>(consumerProps, new StringDeserializer(), new StringDeserializer());
+		output.assign(output.partitionsFor(outputTopic).stream()
+				.map(info -> new TopicPartition(outputTopic, info.partition())).collect(Collectors.toList()));
+		output.seekToEnd(output.assignment());
+		output.assignment().forEach(output::position);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(MESSAGES)
+	public void transform() {
+		for (int i = 0; i < MESSAGES; i++)
+			template.send(inputTopic, String.valueOf(i), "Mensaje " + i);
+		template.flush();
+		int received = 0;
+		final long deadline = System.currentTimeMillis() + 60_000;
+		while (received < MESSAGES) {
+			if (System.currentTimeMillis() > deadline)
+				throw new IllegalStateException("quedan " + (MESSAGES - received) + " mensajes sin transformar");
+			received += output.poll(Duration.ofMillis(100)).count();
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		output.close();
+		context.close();
+		broker.destroy();
+	}
+}
@@ -0,0 +1,85 @@
+package com.euge.kafka;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Listener simulado que se bloquea (sleep) ejecutado con un hilo de plataforma
+// por invocación concurrente, o con hilos virtuales. Al terminar muestra el pico
+// de hilos del sistema y la memoria usada. Los casos "virtual" necesitan Java 21
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class VirtualThreadsBenchmark {
+
+	@Param({ "platform", "virtual" })
+	private String mode;
+
+	@Param({ "100", "1000", "10000" })
+	private int concurrency;
+
+	@Param({ "10" })
+	private long blockingMillis;
+
+	private ExecutorService executor;
+
+	@Setup
+	public void setup() {
+		if ("virtual".equals(mode)) {
+			if (!VirtualThreads.isAvailable())
+				throw new IllegalStateException("Este JDK no tiene hilos virtuales");
+			executor = VirtualThreads.newExecutor("listener-");
+		} else
+			executor = Executors.newFixedThreadPool(concurrency);
+		ManagementFactory.getThreadMXBean().resetPeakThreadCount();
+	}
+
+	// Cada operación es una invocación del listener; se lanzan "concurrency" a la
+	// vez y se espera a que terminen todas
+	@Benchmark
+	@OperationsPerInvocation(1)
+	public void blockingHandlers() throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(concurrency);
+		for (int i = 0; i < concurrency; i++) {
+			executor.execute(() -> {
+				try {
+					Thread.sleep(blockingMillis);
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				done.countDown();
+			});
+		}
+		done.await();
+	}
+
+	@TearDown
+	public void tearDown() throws InterruptedException {
+		final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		final Runtime runtime = Runtime.getRuntime();
+		System.out.println(mode + "/" + concurrency + ": pico de hilos " + threads.getPeakThreadCount()
+				+ ", memoria usada " + (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024) + " MB");
+		executor.shutdown();
+		executor.awaitTermination(10, TimeUnit.SECONDS);
+	}
+}
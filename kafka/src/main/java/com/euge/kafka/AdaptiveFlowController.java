@@ -0,0 +1,234 @@
+package com.euge.kafka;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntSupplier;
+
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextClosedEvent;
+import org.springframework.kafka.config.KafkaListenerEndpointRegistry;
+import org.springframework.kafka.listener.BatchInterceptor;
+import org.springframework.kafka.listener.ConsumerAwareRecordInterceptor;
+import org.springframework.kafka.listener.MessageListenerContainer;
+import org.springframework.kafka.support.KafkaUtils;
+
+// Control de flujo de los consumidores. Un interceptor mide en cada particion el
+// tiempo de proceso por registro (media movil exponencial) y cada intervalo se
+// revisan los contenedores:
+// - Si una particion tarda mas de pauseLatencyMs por registro, o la cola del
+// grupo (por ejemplo los registros pendientes en OrderedParallelProcessor)
+// supera pauseQueueDepth, la particion se pausa. El consumidor sigue haciendo
+// poll, asi que no se supera max.poll.interval.ms ni hay rebalanceo, pero no
+// recibe registros de esa particion
+// - Pasados pauseMs se reanuda para volver a medir, siempre que la cola haya
+// bajado de resumeQueueDepth
+// El controlador no cambia max.poll.records: el consumidor lo lee al crearse, y
+// cambiarlo obligaria a reiniciar el contenedor, que rebalancea sus particiones.
+// El control se detiene al cerrarse el contexto, antes de que se paren los
+// contenedores
+public class AdaptiveFlowController implements ApplicationListener<ContextClosedEvent> {
+
+	private static final Logger LOG = LoggerFactory.getLogger(AdaptiveFlowController.class);
+
+	// Peso de cada medida nueva en la media
+	private static final double ALPHA = 0.2;
+
+	private final KafkaListenerEndpointRegistry registry;
+
+	private final long pauseLatencyNanos;
+
+	private final long pauseMs;
+
+	private final int pauseQueueDepth;
+
+	private final int resumeQueueDepth;
+
+	private final Map<String, GroupFlow> groups = new ConcurrentHashMap<>();
+
+	private final Map<String, IntSupplier> queues = new ConcurrentHashMap<>();
+
+	private final ScheduledExecutorService scheduler;
+
+	private final long intervalMs;
+
+	private final AtomicBoolean started = new AtomicBoolean();
+
+	public AdaptiveFlowController(KafkaListenerEndpointRegistry registry, long intervalMs, long pauseLatencyMs,
+			long pauseMs, int pauseQueueDepth, int resumeQueueDepth) {
+		if (resumeQueueDepth > pauseQueueDepth)
+			throw new IllegalArgumentException("resumeQueueDepth no puede ser mayor que pauseQueueDepth");
+		this.registry = registry;
+		this.pauseLatencyNanos = TimeUnit.MILLISECONDS.toNanos(pauseLatencyMs);
+		this.pauseMs = pauseMs;
+		this.pauseQueueDepth = pauseQueueDepth;
+		this.resumeQueueDepth = resumeQueueDepth;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			final Thread thread = new Thread(r, "flow-control");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.intervalMs = intervalMs;
+	}
+
+	// Registros pendientes de procesar fuera del hilo consumidor en el grupo
+	public void registerQueue(String groupId, IntSupplier depth) {
+		queues.put(groupId, depth);
+	}
+
+	// Interceptor que mide el tiempo de proceso, para usar en el contenedor junto a
+	// los demas interceptores. La revision periodica empieza con el primero
+	public <K, V> FlowInterceptor<K, V> interceptor() {
+		if (started.compareAndSet(false, true))
+			scheduler.scheduleWithFixedDelay(this::control, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+		return new FlowInterceptor<>();
+	}
+
+	// Espera a que termine la revision en curso, para que no pause ni reanude
+	// particiones de contenedores que se estan parando
+	@Override
+	public void onApplicationEvent(ContextClosedEvent event) {
+		scheduler.shutdownNow();
+		try {
+			scheduler.awaitTermination(5, TimeUnit.SECONDS);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void control() {
+		try {
+			final long now = System.currentTimeMillis();
+			for (final MessageListenerContainer container : registry.getListenerContainers()) {
+				final GroupFlow group = container.isRunning() ? groups.get(container.getGroupId()) : null;
+				if (group == null)
+					continue;
+				control(container, group, now);
+			}
+		} catch (final RuntimeException e) {
+			// Que un fallo no cancele la tarea periodica
+			LOG.warn("Error en el control de flujo", e);
+		}
+	}
+
+	private void control(MessageListenerContainer container, GroupFlow group, long now) {
+		final Collection<TopicPartition> assigned = container.getAssignedPartitions();
+		if (assigned == null)
+			return;
+		final IntSupplier queue = queues.get(container.getGroupId());
+		final int depth = queue == null ? 0 : queue.getAsInt();
+		for (final TopicPartition tp : assigned) {
+			final PartitionFlow flow = group.partition(tp.topic(), tp.partition());
+			final boolean slow = flow.recordNanos > pauseLatencyNanos;
+			if (flow.pausedAt == 0) {
+				if (slow || depth > pauseQueueDepth) {
+					container.pausePartition(tp);
+					flow.pausedAt = now;
+					LOG.info("Pausada la particion {} del grupo {}: {} ms por registro, {} en cola", tp,
+							container.getGroupId(), flow.recordNanos / 1_000_000, depth);
+				}
+			} else if (depth <= resumeQueueDepth && (!slow || now - flow.pausedAt >= pauseMs)) {
+				// La siguiente medida sustituye a la media, que es de antes de la pausa
+				flow.recordNanos = -1;
+				flow.pausedAt = 0;
+				container.resumePartition(tp);
+				LOG.info("Reanudada la particion {} del grupo {}", tp, container.getGroupId());
+			}
+		}
+	}
+
+	private void processed(String topic, int partition, int records, long elapsedNanos) {
+		final String groupId = KafkaUtils.getConsumerGroupId();
+		if (groupId == null || records == 0)
+			return;
+		GroupFlow group = groups.get(groupId);
+		if (group == null)
+			group = groups.computeIfAbsent(groupId, g -> new GroupFlow());
+		group.partition(topic, partition).record((double) elapsedNanos / records);
+	}
+
+	public final class FlowInterceptor<K, V> implements ConsumerAwareRecordInterceptor<K, V>, BatchInterceptor<K, V> {
+
+		// Instante en que empezo a procesarse el registro o lote en curso en cada hilo
+		private final ThreadLocal<long[]> start = ThreadLocal.withInitial(() -> new long[1]);
+
+		private FlowInterceptor() {
+		}
+
+		@Override
+		public ConsumerRecord<K, V> intercept(ConsumerRecord<K, V> record, Consumer<K, V> consumer) {
+			start.get()[0] = System.nanoTime();
+			return record;
+		}
+
+		@Override
+		public void success(ConsumerRecord<K, V> record, Consumer<K, V> consumer) {
+			processed(record.topic(), record.partition(), 1, System.nanoTime() - start.get()[0]);
+		}
+
+		@Override
+		public void failure(ConsumerRecord<K, V> record, Exception exception, Consumer<K, V> consumer) {
+			success(record, consumer);
+		}
+
+		@Override
+		public ConsumerRecords<K, V> intercept(ConsumerRecords<K, V> batch, Consumer<K, V> consumer) {
+			start.get()[0] = System.nanoTime();
+			return batch;
+		}
+
+		// El tiempo del lote se reparte entre sus registros
+		@Override
+		public void success(ConsumerRecords<K, V> batch, Consumer<K, V> consumer) {
+			final long elapsed = System.nanoTime() - start.get()[0];
+			final int count = batch.count();
+			for (final TopicPartition tp : batch.partitions())
+				processed(tp.topic(), tp.partition(), count, elapsed);
+		}
+
+		@Override
+		public void failure(ConsumerRecords<K, V> batch, Exception exception, Consumer<K, V> consumer) {
+			success(batch, consumer);
+		}
+	}
+
+	// Por topico y numero de particion, para no crear un TopicPartition por
+	// registro
+	private static final class GroupFlow {
+
+		private final Map<String, Map<Integer, PartitionFlow>> topics = new ConcurrentHashMap<>();
+
+		PartitionFlow partition(String topic, int partition) {
+			Map<Integer, PartitionFlow> partitions = topics.get(topic);
+			if (partitions == null)
+				partitions = topics.computeIfAbsent(topic, t -> new ConcurrentHashMap<>());
+			final PartitionFlow flow = partitions.get(partition);
+			return flow != null ? flow : partitions.computeIfAbsent(partition, p -> new PartitionFlow());
+		}
+	}
+
+	// La media solo la actualiza el hilo consumidor de la particion
+	private static final class PartitionFlow {
+
+		// Nanosegundos por registro, o -1 sin medidas
+		private volatile double recordNanos = -1;
+
+		// Cuando se pauso, o 0 si no esta pausada
+		private volatile long pausedAt;
+
+		void record(double nanos) {
+			final double current = recordNanos;
+			recordNanos = current < 0 ? nanos : current + ALPHA * (nanos - current);
+		}
+	}
+}
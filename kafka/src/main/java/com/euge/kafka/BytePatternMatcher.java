@@ -0,0 +1,48 @@
+package com.euge.kafka;
+
+import java.nio.charset.StandardCharsets;
+
+// Busqueda de un patron de bytes con Boyer-Moore-Horspool. La tabla de saltos
+// se calcula una vez al crear el matcher, y la busqueda no reserva memoria
+public final class BytePatternMatcher {
+
+	private final byte[] pattern;
+
+	// Cuanto se puede avanzar segun el ultimo byte de la ventana
+	private final int[] shift = new int[256];
+
+	public BytePatternMatcher(byte[] pattern) {
+		if (pattern.length == 0)
+			throw new IllegalArgumentException("el patron no puede estar vacio");
+		this.pattern = pattern.clone();
+		final int last = pattern.length - 1;
+		for (int i = 0; i < shift.length; i++)
+			shift[i] = pattern.length;
+		for (int i = 0; i < last; i++)
+			shift[pattern[i] & 0xFF] = last - i;
+	}
+
+	public BytePatternMatcher(String pattern) {
+		this(pattern.getBytes(StandardCharsets.UTF_8));
+	}
+
+	public boolean matches(byte[] data) {
+		return data != null && indexOf(data) >= 0;
+	}
+
+	// Posición de la primera aparición del patron, o -1
+	public int indexOf(byte[] data) {
+		final int last = pattern.length - 1;
+		int pos = 0;
+		while (pos <= data.length - pattern.length) {
+			int i = last;
+			while (data[pos + i] == pattern[i]) {
+				if (i == 0)
+					return pos;
+				i--;
+			}
+			pos += shift[data[pos + last] & 0xFF];
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,161 @@
+package com.euge.kafka;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.core.ResolvableType;
+import org.springframework.kafka.config.ConcurrentKafkaListenerContainerFactory;
+import org.springframework.kafka.core.ConsumerFactory;
+import org.springframework.kafka.core.DefaultKafkaConsumerFactory;
+import org.springframework.kafka.core.ConsumerPostProcessor;
+import org.springframework.kafka.core.MicrometerConsumerListener;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+// Registro de las factorias de consumidores. Todas las factorias comparten la
+// configuración base, y solo se crea una factoria por cada combinación de
+// deserializadores: el grupo y el resto de propiedades propias de cada
+// factoria de contenedores se aplican con configure(...).
+// Cada grupo puede sobrescribir cualquier propiedad del consumidor con
+// kafka.consumer.groups[<grupo>][<propiedad>]=<valor>. Los corchetes conservan
+// el nombre del grupo tal cual, con mayusculas (partitionsAll)
+public class ConsumerFactoryRegistry {
+
+	private static final String GROUPS_PROPERTY = "kafka.consumer.groups";
+
+	private static final Bindable<Map<String, Map<String, String>>> GROUPS = Bindable
+			.of(ResolvableType.forClassWithGenerics(Map.class, ResolvableType.forClass(String.class),
+					ResolvableType.forClassWithGenerics(Map.class, String.class, String.class)));
+
+	private final Map<String, Object> baseConfig;
+
+	// Propiedades configuradas para cada grupo. Se lee todo el mapa de una vez:
+	// un nombre de propiedad con el grupo en camelCase (kafka.consumer.groups.partitionsAll)
+	// no es un nombre valido para Spring Boot
+	private final Map<String, Map<String, String>> groupOverrides;
+
+	private final MeterRegistry meterRegistry;
+
+	private final Map<String, ConsumerFactory<?, ?>> factories = new ConcurrentHashMap<>();
+
+	public ConsumerFactoryRegistry(Map<String, Object> baseConfig, Binder binder, MeterRegistry meterRegistry) {
+		this.baseConfig = Collections.unmodifiableMap(new HashMap<>(baseConfig));
+		this.groupOverrides = binder.bind(GROUPS_PROPERTY, GROUPS).orElse(Collections.emptyMap());
+		this.meterRegistry = meterRegistry;
+	}
+
+	// Factoria compartida para claves y valores String
+	public ConsumerFactory<String, String> stringFactory() {
+		return factory("string", StringDeserializer::new, StringDeserializer::new);
+	}
+
+	// Factoria con nombre para otros deserializadores. Las llamadas con el mismo
+	// nombre devuelven la misma factoria
+	@SuppressWarnings("unchecked")
+	public <K, V> ConsumerFactory<K, V> factory(String name, Supplier<Deserializer<K>> keyDeserializer,
+			Supplier<Deserializer<V>> valueDeserializer) {
+		return (ConsumerFactory<K, V>) factories.computeIfAbsent(name, n -> {
+			final DefaultKafkaConsumerFactory<K, V> factory = new DefaultKafkaConsumerFactory<>(baseConfig,
+					keyDeserializer, valueDeserializer);
+			// Metricas del cliente de Kafka, entre ellas el lag de cada particion
+			// (records-lag)
+			factory.addListener(new MicrometerConsumerListener<>(meterRegistry));
+			return factory;
+		});
+	}
+
+	// Propiedades del consumidor configuradas para el grupo
+	public Map<String, String> overrides(String groupId) {
+		return groupOverrides.getOrDefault(groupId, Collections.emptyMap());
+	}
+
+	// Aplica a la factoria de contenedores el grupo y las propiedades del
+	// consumidor. Las propiedades configuradas para el grupo tienen preferencia
+	// sobre defaults.
+	// Las propiedades no van en ContainerProperties: la factoria no las pasa a los
+	// contenedores que crea (solo las de @KafkaListener(properties)). La factoria
+	// de consumidores compartida se envuelve en una del grupo que las añade a cada
+	// consumidor que crea
+	public <K, V> void configure(ConcurrentKafkaListenerContainerFactory<K, V> factory, String groupId,
+			Map<String, ?> defaults) {
+		factory.getContainerProperties().setGroupId(groupId);
+		final Map<String, Object> props = new HashMap<>(defaults);
+		props.putAll(overrides(groupId));
+		factory.setConsumerFactory(new GroupConsumerFactory<>(factory.getConsumerFactory(), props));
+	}
+
+	// Factoria de consumidores de un grupo: crea los consumidores con la factoria
+	// compartida, con las propiedades del grupo. Las propiedades que recibe
+	// createConsumer (las de @KafkaListener(properties)) tienen preferencia
+	private static class GroupConsumerFactory<K, V> implements ConsumerFactory<K, V> {
+
+		private final ConsumerFactory<K, V> delegate;
+
+		private final Map<String, Object> props;
+
+		GroupConsumerFactory(ConsumerFactory<K, V> delegate, Map<String, Object> props) {
+			this.delegate = delegate;
+			this.props = Collections.unmodifiableMap(props);
+		}
+
+		@Override
+		public Consumer<K, V> createConsumer(String groupId, String clientIdPrefix, String clientIdSuffix) {
+			return createConsumer(groupId, clientIdPrefix, clientIdSuffix, null);
+		}
+
+		@Override
+		public Consumer<K, V> createConsumer(String groupId, String clientIdPrefix, String clientIdSuffix,
+				Properties properties) {
+			final Properties merged = new Properties();
+			merged.putAll(props);
+			if (properties != null)
+				properties.stringPropertyNames().forEach(name -> merged.put(name, properties.getProperty(name)));
+			return delegate.createConsumer(groupId, clientIdPrefix, clientIdSuffix, merged);
+		}
+
+		@Override
+		public boolean isAutoCommit() {
+			final Object autoCommit = props.get(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG);
+			return autoCommit == null ? delegate.isAutoCommit() : Boolean.parseBoolean(autoCommit.toString());
+		}
+
+		// El contenedor consulta aqui propiedades como auto.offset.reset
+		@Override
+		public Map<String, Object> getConfigurationProperties() {
+			final Map<String, Object> config = new HashMap<>(delegate.getConfigurationProperties());
+			config.putAll(props);
+			return Collections.unmodifiableMap(config);
+		}
+
+		@Override
+		public Deserializer<K> getKeyDeserializer() {
+			return delegate.getKeyDeserializer();
+		}
+
+		@Override
+		public Deserializer<V> getValueDeserializer() {
+			return delegate.getValueDeserializer();
+		}
+
+		@Override
+		public List<Listener<K, V>> getListeners() {
+			return delegate.getListeners();
+		}
+
+		@Override
+		public List<ConsumerPostProcessor<K, V>> getPostProcessors() {
+			return delegate.getPostProcessors();
+		}
+	}
+}
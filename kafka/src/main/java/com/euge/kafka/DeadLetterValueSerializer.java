@@ -0,0 +1,42 @@
+package com.euge.kafka;
+
+import java.util.Map;
+
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.serialization.Serializer;
+
+// Serializador para publicar en los topicos de reintentos y en los DLT. Cuando
+// el registro fallo al deserializarse, DeadLetterPublishingRecoverer publica los
+// bytes originales, que se envian tal cual; el resto de valores se serializan
+// con el serializador del topico
+public class DeadLetterValueSerializer<T> implements Serializer<Object> {
+
+	private final Serializer<T> delegate;
+
+	public DeadLetterValueSerializer(Serializer<T> delegate) {
+		this.delegate = delegate;
+	}
+
+	@Override
+	public void configure(Map<String, ?> configs, boolean isKey) {
+		delegate.configure(configs, isKey);
+	}
+
+	@Override
+	public byte[] serialize(String topic, Object data) {
+		return serialize(topic, null, data);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public byte[] serialize(String topic, Headers headers, Object data) {
+		if (data instanceof byte[])
+			return (byte[]) data;
+		return headers == null ? delegate.serialize(topic, (T) data) : delegate.serialize(topic, headers, (T) data);
+	}
+
+	@Override
+	public void close() {
+		delegate.close();
+	}
+}
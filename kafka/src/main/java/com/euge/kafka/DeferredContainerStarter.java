@@ -0,0 +1,113 @@
+package com.euge.kafka;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.kafka.config.KafkaListenerEndpointRegistry;
+import org.springframework.kafka.core.KafkaAdmin;
+import org.springframework.kafka.listener.AbstractMessageListenerContainer;
+import org.springframework.kafka.listener.MessageListenerContainer;
+
+// Arranque rapido (kafka.fastStart=true). Justo antes de que el registro de
+// listener arranque sus contenedores, los que arrancarian con el contexto se
+// apuntan aqui y se marcan para que no arranquen; KafkaAdmin tampoco crea los
+// topicos al arrancar. Cuando la aplicación esta lista, un hilo en segundo plano
+// crea o comprueba los topicos y arranca los contenedores, de modo que el
+// arranque no espera a ninguna llamada al broker.
+// Se trabaja sobre el registro y no sobre las factorias, asi que tambien se
+// aplica a los contenedores de los topicos de reintento, cuya configuración
+// sustituye el ContainerCustomizer de sus factorias.
+// La aplicación esta lista antes, pero el primer registro llega despues que sin
+// arranque rapido: quien envie nada mas arrancar tiene que esperar con
+// awaitStarted() para que los listener no se pierdan sus mensajes
+public class DeferredContainerStarter implements SmartLifecycle, ApplicationListener<ApplicationReadyEvent> {
+
+	private static final Logger LOG = LoggerFactory.getLogger(DeferredContainerStarter.class);
+
+	private final KafkaAdmin kafkaAdmin;
+
+	private final KafkaListenerEndpointRegistry registry;
+
+	private final boolean enabled;
+
+	private final List<MessageListenerContainer> containers = new CopyOnWriteArrayList<>();
+
+	private final CountDownLatch started;
+
+	private volatile boolean running;
+
+	public DeferredContainerStarter(KafkaAdmin kafkaAdmin, KafkaListenerEndpointRegistry registry, boolean enabled) {
+		this.kafkaAdmin = kafkaAdmin;
+		this.registry = registry;
+		this.enabled = enabled;
+		this.started = new CountDownLatch(enabled ? 1 : 0);
+	}
+
+	// Espera a que se hayan arrancado los contenedores en segundo plano. Sin
+	// arranque rapido vuelve enseguida
+	public boolean awaitStarted(long timeout, TimeUnit unit) throws InterruptedException {
+		return started.await(timeout, unit);
+	}
+
+	// Se ejecuta en la fase anterior a la del registro. Los contenedores que no
+	// tienen que arrancar solos (autoStartup a false) no se tocan
+	@Override
+	public void start() {
+		running = true;
+		if (!enabled)
+			return;
+		for (final MessageListenerContainer container : registry.getListenerContainers()) {
+			if (container.isAutoStartup()) {
+				container.setAutoStartup(false);
+				containers.add(container);
+			}
+		}
+	}
+
+	@Override
+	public void stop() {
+		running = false;
+	}
+
+	@Override
+	public boolean isRunning() {
+		return running;
+	}
+
+	@Override
+	public int getPhase() {
+		return AbstractMessageListenerContainer.DEFAULT_PHASE - 1;
+	}
+
+	@Override
+	public void onApplicationEvent(ApplicationReadyEvent event) {
+		if (!enabled)
+			return;
+		final Thread starter = new Thread(this::startAll, "fast-start");
+		starter.setDaemon(true);
+		starter.start();
+	}
+
+	private void startAll() {
+		final long start = System.currentTimeMillis();
+		if (!kafkaAdmin.initialize())
+			LOG.warn("No se pudieron crear o comprobar los topicos");
+		for (final MessageListenerContainer container : containers) {
+			try {
+				container.start();
+			} catch (final RuntimeException e) {
+				LOG.error("No se pudo arrancar el contenedor {}", container.getListenerId(), e);
+			}
+		}
+		LOG.info("Arrancados {} contenedores en segundo plano en {} ms", containers.size(),
+				System.currentTimeMillis() - start);
+		started.countDown();
+	}
+}
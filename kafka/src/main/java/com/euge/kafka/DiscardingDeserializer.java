@@ -0,0 +1,65 @@
+package com.euge.kafka;
+
+import java.util.Map;
+
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.serialization.Deserializer;
+
+// Descarta registros antes de deserializarlos. Si el valor (o la cabecera
+// indicada) contiene el patron, devuelve null sin llamar al deserializador y
+// marca el registro con la cabecera DISCARDED_HEADER, de modo que no se paga la
+// conversión a String de los mensajes que se van a descartar. El contenedor
+// descarta los registros marcados con KafkaConsumerConfig.FILTER_DISCARDED; los
+// tombstones (valor null) no llevan la marca y llegan al listener
+public class DiscardingDeserializer<T> implements Deserializer<T> {
+
+	public static final String DISCARDED_HEADER = "discarded";
+
+	private static final byte[] MARK = new byte[0];
+
+	private final Deserializer<T> delegate;
+
+	private final BytePatternMatcher matcher;
+
+	// Si no es null se busca el patron en esta cabecera en lugar de en el valor
+	private final String headerName;
+
+	public DiscardingDeserializer(Deserializer<T> delegate, BytePatternMatcher matcher, String headerName) {
+		this.delegate = delegate;
+		this.matcher = matcher;
+		this.headerName = headerName;
+	}
+
+	@Override
+	public void configure(Map<String, ?> configs, boolean isKey) {
+		delegate.configure(configs, isKey);
+	}
+
+	// Sin cabeceras no se puede marcar el registro, asi que no se descarta. El
+	// consumidor de Kafka siempre llama a la versión con cabeceras
+	@Override
+	public T deserialize(String topic, byte[] data) {
+		return delegate.deserialize(topic, data);
+	}
+
+	@Override
+	public T deserialize(String topic, Headers headers, byte[] data) {
+		final boolean discard;
+		if (headerName == null)
+			discard = matcher.matches(data);
+		else {
+			final Header header = headers.lastHeader(headerName);
+			discard = header != null && matcher.matches(header.value());
+		}
+		if (!discard)
+			return delegate.deserialize(topic, headers, data);
+		headers.add(DISCARDED_HEADER, MARK);
+		return null;
+	}
+
+	@Override
+	public void close() {
+		delegate.close();
+	}
+}
@@ -0,0 +1,44 @@
+package com.euge.kafka;
+
+import java.nio.charset.StandardCharsets;
+
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.serialization.Deserializer;
+
+// Deserializador del formato binario de GreetingSerializer. Lee los campos
+// directamente del array recibido, sin pasar por un arbol JSON
+public class GreetingDeserializer implements Deserializer<Greeting> {
+
+	@Override
+	public Greeting deserialize(String topic, byte[] data) {
+		if (data == null)
+			return null;
+		if (data.length < 9)
+			throw new SerializationException("Greeting binario demasiado corto: " + data.length + " bytes");
+		if (data[0] != GreetingSerializer.VERSION)
+			throw new SerializationException("Version de Greeting binario no soportada: " + data[0]);
+		final int msgLen = readInt(data, 1);
+		final String msg = readField(data, 5, msgLen);
+		final int namePos = 5 + Math.max(msgLen, 0);
+		if (namePos + 4 > data.length)
+			throw new SerializationException("Greeting binario truncado");
+		final int nameLen = readInt(data, namePos);
+		final String name = readField(data, namePos + 4, nameLen);
+		return new Greeting(msg, name);
+	}
+
+	private static String readField(byte[] data, int pos, int len) {
+		if (len == -1)
+			return null;
+		// len > data.length - pos en lugar de pos + len > data.length, que se
+		// desborda con longitudes corruptas cercanas a Integer.MAX_VALUE
+		if (len < 0 || len > data.length - pos)
+			throw new SerializationException("Longitud de campo invalida en Greeting binario: " + len);
+		return new String(data, pos, len, StandardCharsets.UTF_8);
+	}
+
+	private static int readInt(byte[] data, int pos) {
+		return ((data[pos] & 0xFF) << 24) | ((data[pos + 1] & 0xFF) << 16) | ((data[pos + 2] & 0xFF) << 8)
+				| (data[pos + 3] & 0xFF);
+	}
+}
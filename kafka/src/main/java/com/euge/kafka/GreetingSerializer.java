@@ -0,0 +1,91 @@
+package com.euge.kafka;
+
+import org.apache.kafka.common.serialization.Serializer;
+
+// Serializador binario para Greeting. Formato:
+// [version:1 byte][longitud msg:int][msg UTF-8][longitud name:int][name UTF-8]
+// Una longitud de -1 indica un campo null. Los campos se codifican en UTF-8
+// directamente sobre el array de salida, sin Strings ni byte[] intermedios
+public class GreetingSerializer implements Serializer<Greeting> {
+
+	public static final byte VERSION = 1;
+
+	@Override
+	public byte[] serialize(String topic, Greeting data) {
+		if (data == null)
+			return null;
+		final String msg = data.getMsg();
+		final String name = data.getName();
+		final byte[] out = new byte[1 + 4 + utf8Length(msg) + 4 + utf8Length(name)];
+		out[0] = VERSION;
+		int pos = writeField(out, 1, msg);
+		writeField(out, pos, name);
+		return out;
+	}
+
+	private static int utf8Length(String s) {
+		if (s == null)
+			return 0;
+		int n = 0;
+		final int len = s.length();
+		for (int i = 0; i < len; i++) {
+			final char c = s.charAt(i);
+			if (c < 0x80)
+				n += 1;
+			else if (c < 0x800)
+				n += 2;
+			else if (Character.isSurrogate(c)) {
+				if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+					n += 4;
+					i++;
+				} else
+					// Surrogate suelto: se sustituye por '?', igual que String.getBytes
+					n += 1;
+			} else
+				n += 3;
+		}
+		return n;
+	}
+
+	// Escribe la longitud y el texto a partir de pos. Devuelve la siguiente posición
+	private static int writeField(byte[] out, int pos, String s) {
+		if (s == null) {
+			writeInt(out, pos, -1);
+			return pos + 4;
+		}
+		final int start = pos + 4;
+		int p = start;
+		final int len = s.length();
+		for (int i = 0; i < len; i++) {
+			final char c = s.charAt(i);
+			if (c < 0x80) {
+				out[p++] = (byte) c;
+			} else if (c < 0x800) {
+				out[p++] = (byte) (0xC0 | (c >> 6));
+				out[p++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isSurrogate(c)) {
+				if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+					final int cp = Character.toCodePoint(c, s.charAt(++i));
+					out[p++] = (byte) (0xF0 | (cp >> 18));
+					out[p++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+					out[p++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+					out[p++] = (byte) (0x80 | (cp & 0x3F));
+				} else
+					out[p++] = (byte) '?';
+			} else {
+				out[p++] = (byte) (0xE0 | (c >> 12));
+				out[p++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				out[p++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		writeInt(out, pos, p - start);
+		return p;
+	}
+
+	private static void writeInt(byte[] out, int pos, int v) {
+		out[pos] = (byte) (v >>> 24);
+		out[pos + 1] = (byte) (v >>> 16);
+		out[pos + 2] = (byte) (v >>> 8);
+		out[pos + 3] = (byte) v;
+	}
+}
@@ -0,0 +1,257 @@
+package com.euge.kafka;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.kafka.clients.producer.Partitioner;
+import org.apache.kafka.clients.producer.internals.DefaultPartitioner;
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.utils.Utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+
+// Particionador que detecta las claves calientes. Cuenta los envios de cada
+// clave, por topico, en un count-min sketch (depth filas de width contadores; la
+// estimación de una clave es el menor de sus contadores, nunca menos que el valor
+// real). Cada decay.ms los contadores se dividen por dos, de modo que cuentan
+// sobre todo los envios recientes.
+// Una clave es caliente si supone mas de hot.share de los envios a su topico, de
+// modo que el trafico de un topico no oculta las claves calientes de otro. En
+// los topicos de relaxed.topics, en los que el orden de los mensajes de una
+// clave no importa, los mensajes de una clave caliente se reparten entre
+// subpartitions particiones consecutivas a partir de la suya. El resto de
+// mensajes se reparten con DefaultPartitioner.
+// Publica por topico la metrica kafka.partitioner.skew: envios de la particion
+// con mas envios entre la media de envios por particion (1 es un reparto
+// perfecto).
+// Las claves de configuración se leen todas en configure, aunque no cambien el
+// valor por defecto: Kafka avisa de las claves que no conoce si nadie las lee
+public class HotKeyPartitioner implements Partitioner {
+
+	public static final String RELAXED_TOPICS_CONFIG = "hotkey.partitioner.relaxed.topics";
+
+	public static final String SUBPARTITIONS_CONFIG = "hotkey.partitioner.subpartitions";
+
+	public static final String HOT_SHARE_CONFIG = "hotkey.partitioner.hot.share";
+
+	public static final String MIN_SAMPLES_CONFIG = "hotkey.partitioner.min.samples";
+
+	public static final String SKETCH_WIDTH_CONFIG = "hotkey.partitioner.sketch.width";
+
+	public static final String SKETCH_DEPTH_CONFIG = "hotkey.partitioner.sketch.depth";
+
+	public static final String DECAY_MS_CONFIG = "hotkey.partitioner.decay.ms";
+
+	// Registro de metricas; si no se indica se usa Metrics.globalRegistry
+	public static final String METER_REGISTRY_CONFIG = "hotkey.partitioner.meter.registry";
+
+	// Cada productor tiene su propio particionador; las metricas se distinguen por
+	// este numero
+	private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+	private final DefaultPartitioner delegate = new DefaultPartitioner();
+
+	private final String instance = Integer.toString(INSTANCES.incrementAndGet());
+
+	private Set<String> relaxedTopics = Collections.emptySet();
+
+	private int subPartitions = 3;
+
+	private double hotShare = 0.05;
+
+	private long minSamples = 1000;
+
+	private int width = 2048;
+
+	private int depth = 4;
+
+	private long decayMs = 10_000;
+
+	private MeterRegistry registry = Metrics.globalRegistry;
+
+	private final AtomicLong nextDecay = new AtomicLong();
+
+	private final Map<String, TopicStats> topics = new ConcurrentHashMap<>();
+
+	@Override
+	public void configure(Map<String, ?> configs) {
+		delegate.configure(configs);
+		final Object relaxed = configs.get(RELAXED_TOPICS_CONFIG);
+		if (relaxed instanceof List) {
+			relaxedTopics = new HashSet<>();
+			for (final Object topic : (List<?>) relaxed)
+				relaxedTopics.add(topic.toString());
+		} else if (relaxed != null && !relaxed.toString().trim().isEmpty())
+			relaxedTopics = new HashSet<>(Arrays.asList(relaxed.toString().trim().split("\\s*,\\s*")));
+		subPartitions = (int) number(configs, SUBPARTITIONS_CONFIG, subPartitions);
+		hotShare = number(configs, HOT_SHARE_CONFIG, hotShare);
+		minSamples = (long) number(configs, MIN_SAMPLES_CONFIG, minSamples);
+		width = (int) number(configs, SKETCH_WIDTH_CONFIG, width);
+		depth = (int) number(configs, SKETCH_DEPTH_CONFIG, depth);
+		decayMs = (long) number(configs, DECAY_MS_CONFIG, decayMs);
+		if (configs.get(METER_REGISTRY_CONFIG) instanceof MeterRegistry)
+			registry = (MeterRegistry) configs.get(METER_REGISTRY_CONFIG);
+		if (subPartitions < 1 || width < 1 || depth < 1 || hotShare <= 0 || hotShare > 1)
+			throw new IllegalArgumentException("configuración de HotKeyPartitioner no valida");
+		nextDecay.set(System.currentTimeMillis() + decayMs);
+	}
+
+	private static double number(Map<String, ?> configs, String name, double defaultValue) {
+		final Object value = configs.get(name);
+		if (value instanceof Number)
+			return ((Number) value).doubleValue();
+		return value == null ? defaultValue : Double.parseDouble(value.toString());
+	}
+
+	@Override
+	public int partition(String topic, Object key, byte[] keyBytes, Object value, byte[] valueBytes,
+			Cluster cluster) {
+		int partition = delegate.partition(topic, key, keyBytes, value, valueBytes, cluster);
+		final int numPartitions = cluster.partitionsForTopic(topic).size();
+		final TopicStats stats = stats(topic);
+		if (keyBytes != null) {
+			decay();
+			final long estimate = stats.add(keyBytes);
+			final long count = stats.total.incrementAndGet();
+			if (numPartitions > 1 && count >= minSamples && estimate >= hotShare * count) {
+				stats.hotRecords.increment();
+				if (subPartitions > 1 && relaxedTopics.contains(topic))
+					partition = (partition + ThreadLocalRandom.current().nextInt(Math.min(subPartitions, numPartitions)))
+							% numPartitions;
+			}
+		}
+		stats.record(partition, numPartitions);
+		return partition;
+	}
+
+	// Los mensajes sin clave siguen el reparto sticky de DefaultPartitioner
+	@Override
+	public void onNewBatch(String topic, Cluster cluster, int prevPartition) {
+		delegate.onNewBatch(topic, cluster, prevPartition);
+	}
+
+	// Al cerrarse el productor sus metricas dejan de tener sentido; se quitan del
+	// registro para que no queden medidores de productores cerrados
+	@Override
+	public void close() {
+		for (final TopicStats stats : topics.values())
+			stats.remove();
+		topics.clear();
+		delegate.close();
+	}
+
+	private static int fnv1a(byte[] data) {
+		int hash = 0x811C9DC5;
+		for (final byte b : data) {
+			hash ^= b & 0xFF;
+			hash *= 0x01000193;
+		}
+		return hash;
+	}
+
+	// Divide los contadores por dos cada decayMs. Lo hace el hilo que envia cuando
+	// toca; los incrementos concurrentes pueden perderse, que solo afecta a la
+	// precisión de la estimación
+	private void decay() {
+		final long next = nextDecay.get();
+		final long now = System.currentTimeMillis();
+		if (now < next || !nextDecay.compareAndSet(next, now + decayMs))
+			return;
+		for (final TopicStats stats : topics.values())
+			stats.decay();
+	}
+
+	private TopicStats stats(String topic) {
+		final TopicStats stats = topics.get(topic);
+		return stats != null ? stats : topics.computeIfAbsent(topic, TopicStats::new);
+	}
+
+	// Contadores de las claves y envios recientes a cada particion del topico
+	private final class TopicStats {
+
+		private final AtomicLongArray sketch = new AtomicLongArray(width * depth);
+
+		// Envios con clave
+		private final AtomicLong total = new AtomicLong();
+
+		private volatile AtomicLongArray partitions = new AtomicLongArray(0);
+
+		private final Gauge skewGauge;
+
+		private final Counter hotRecords;
+
+		TopicStats(String topic) {
+			skewGauge = Gauge.builder("kafka.partitioner.skew", this, TopicStats::skew).tag("topic", topic)
+					.tag("partitioner", instance)
+					.description("Envios a la particion con mas envios entre la media por particion")
+					.register(registry);
+			hotRecords = Counter.builder("kafka.partitioner.hot.records").tag("topic", topic)
+					.tag("partitioner", instance).description("Mensajes enviados con una clave caliente")
+					.register(registry);
+		}
+
+		// Suma uno a los contadores de la clave y devuelve su estimación. Los indices
+		// de cada fila salen de dos hashes de la clave (h1 + i * h2)
+		long add(byte[] keyBytes) {
+			final int h1 = Utils.murmur2(keyBytes);
+			final int h2 = fnv1a(keyBytes) | 1;
+			long estimate = Long.MAX_VALUE;
+			for (int i = 0; i < depth; i++) {
+				final int column = Utils.toPositive(h1 + i * h2) % width;
+				estimate = Math.min(estimate, sketch.incrementAndGet(i * width + column));
+			}
+			return estimate;
+		}
+
+		void record(int partition, int numPartitions) {
+			AtomicLongArray current = partitions;
+			if (current.length() < numPartitions) {
+				// El topico tiene particiones nuevas
+				synchronized (this) {
+					if (partitions.length() < numPartitions)
+						partitions = new AtomicLongArray(numPartitions);
+					current = partitions;
+				}
+			}
+			current.incrementAndGet(partition);
+		}
+
+		void remove() {
+			registry.remove(skewGauge);
+			registry.remove(hotRecords);
+		}
+
+		void decay() {
+			for (int i = 0; i < sketch.length(); i++)
+				sketch.set(i, sketch.get(i) >> 1);
+			total.set(total.get() >> 1);
+			final AtomicLongArray current = partitions;
+			for (int i = 0; i < current.length(); i++)
+				current.set(i, current.get(i) >> 1);
+		}
+
+		double skew() {
+			final AtomicLongArray current = partitions;
+			long max = 0;
+			long sum = 0;
+			for (int i = 0; i < current.length(); i++) {
+				final long count = current.get(i);
+				max = Math.max(max, count);
+				sum += count;
+			}
+			return sum == 0 ? 0 : (double) max * current.length() / sum;
+		}
+	}
+}
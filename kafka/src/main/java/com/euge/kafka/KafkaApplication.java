@@ -1,20 +1,45 @@
 package com.euge.kafka;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.ConfigurableApplicationContext;
 import org.springframework.context.annotation.Bean;
+import org.springframework.context.event.EventListener;
 import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.kafka.annotation.RetryableTopic;
 import org.springframework.kafka.annotation.TopicPartition;
 import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.event.ListenerContainerPartitionIdleEvent;
+import org.springframework.kafka.support.Acknowledgment;
 import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.kafka.support.SendResult;
 import org.springframework.messaging.handler.annotation.Header;
 import org.springframework.messaging.handler.annotation.Payload;
+import org.springframework.retry.annotation.Backoff;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 
 @SpringBootApplication
 public class KafkaApplication {
@@ -22,6 +47,29 @@ public class KafkaApplication {
 	public static void main(String[] args) {
 		final ConfigurableApplicationContext context = SpringApplication.run(KafkaApplication.class, args);
 
+		// Con kafka.fastStart los contenedores arrancan en segundo plano; hasta que
+		// arrancan (como mucho un minuto) no se envia nada, o los listener no verian
+		// los primeros mensajes
+		try {
+			context.getBean(DeferredContainerStarter.class).awaitStarted(60, TimeUnit.SECONDS);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		// Con loadgen.enabled=true, en lugar de la demo se genera carga (ver
+		// LoadGenerator)
+		if (context.getEnvironment().getProperty("loadgen.enabled", Boolean.class, false)) {
+			try {
+				context.getBean(LoadGenerator.class).run();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (final IOException e) {
+				e.printStackTrace();
+			}
+			context.close();
+			return;
+		}
+
 		final MessageProducer producer = context.getBean(MessageProducer.class);
 		final MessageListener listener = context.getBean(MessageListener.class);
 
@@ -109,6 +157,11 @@ public class KafkaApplication {
 		return new MessageListener();
 	}
 
+	@Bean
+	public LoadGenerator loadGenerator() {
+		return new LoadGenerator();
+	}
+
 	public static class MessageProducer {
 
 		// Template con la configuración cliente que usa un string serializer para el
@@ -134,6 +187,47 @@ public class KafkaApplication {
 		@Value(value = "${greeting.topic.name}")
 		private String greetingTopicName;
 
+		// Numero maximo de registros enviados y pendientes de confirmar por el broker
+		@Value(value = "${kafka.producer.maxInFlightRecords}")
+		private int maxInFlightRecords;
+
+		// Creditos para los envios asincronos. Cada envio toma uno y lo devuelve
+		// cuando el broker confirma (o falla) el envio
+		private Semaphore inFlight;
+
+		// Con hilos virtuales los callbacks de los envios asincronos no se ejecutan en
+		// el hilo de red del productor sino en un hilo virtual
+		@Value(value = "${kafka.virtualThreads.enabled}")
+		private boolean virtualThreads;
+
+		private ExecutorService callbackExecutor;
+
+		@Autowired
+		private MeterRegistry meterRegistry;
+
+		// Tiempo desde el envio hasta la confirmación del broker, de los envios
+		// correctos y de los fallidos
+		private Timer sendTimer;
+
+		private Timer sendErrorTimer;
+
+		@PostConstruct
+		public void init() {
+			inFlight = new Semaphore(maxInFlightRecords);
+			sendTimer = Timer.builder("kafka.producer.send").tag("result", "success")
+					.publishPercentiles(0.5, 0.95, 0.99, 0.999).register(meterRegistry);
+			sendErrorTimer = Timer.builder("kafka.producer.send").tag("result", "error")
+					.publishPercentiles(0.5, 0.95, 0.99, 0.999).register(meterRegistry);
+			if (virtualThreads && VirtualThreads.isAvailable())
+				callbackExecutor = VirtualThreads.newExecutor("kafka-callback-");
+		}
+
+		@PreDestroy
+		public void destroy() {
+			if (callbackExecutor != null)
+				callbackExecutor.shutdown();
+		}
+
 		@SuppressWarnings("null")
 		public void sendMessage(String message) {
 			kafkaTemplate.send(topicName, message);
@@ -158,10 +252,73 @@ public class KafkaApplication {
 		public void sendGreetingMessage(Greeting greeting) {
 			greetingKafkaTemplate.send(greetingTopicName, greeting);
 		}
+
+		// Envio asincrono. Si hay demasiados registros sin confirmar el llamante se
+		// bloquea hasta que el broker confirme alguno; asi no se agota buffer.memory
+		public CompletableFuture<SendResult<String, String>> sendMessageAsync(String message) {
+			return sendAsync(new ProducerRecord<>(topicName, message));
+		}
+
+		public CompletableFuture<SendResult<String, String>> sendMessageToPartionedAsync(String key, String message) {
+			return sendAsync(new ProducerRecord<>(partionedTopicName, key, message));
+		}
+
+		@SuppressWarnings("null")
+		public CompletableFuture<SendResult<String, String>> sendAsync(ProducerRecord<String, String> record) {
+			try {
+				inFlight.acquire();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				final CompletableFuture<SendResult<String, String>> fallido = new CompletableFuture<>();
+				fallido.completeExceptionally(e);
+				return fallido;
+			}
+			final long start = System.nanoTime();
+			final CompletableFuture<SendResult<String, String>> future;
+			try {
+				future = kafkaTemplate.send(record).completable();
+			} catch (final RuntimeException e) {
+				inFlight.release();
+				throw e;
+			}
+			// El credito se devuelve en el hilo del productor, al confirmarse el envio
+			future.whenComplete((result, ex) -> {
+				inFlight.release();
+				(ex == null ? sendTimer : sendErrorTimer).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+			});
+			if (callbackExecutor != null)
+				// Lo que el llamante encadene al future se ejecuta en un hilo virtual
+				return future.whenCompleteAsync((result, ex) -> {
+				}, callbackExecutor);
+			return future;
+		}
+
+		// Envia todos los registros en cadena, sin esperar a cada confirmación, y hace
+		// un unico flush al final. El future se completa cuando todos se han
+		// confirmado
+		public CompletableFuture<Void> sendAll(Iterable<ProducerRecord<String, String>> records) {
+			final List<CompletableFuture<SendResult<String, String>>> futures = new ArrayList<>();
+			for (final ProducerRecord<String, String> record : records) {
+				futures.add(sendAsync(record));
+			}
+			kafkaTemplate.flush();
+			return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+		}
+
+		// Espera a que el broker confirme todos los envios pendientes
+		public void flush() {
+			kafkaTemplate.flush();
+		}
 	}
 
 	public static class MessageListener {
 
+		private static final Logger LOG = LoggerFactory.getLogger(MessageListener.class);
+
+		// Se registra uno de cada sampleRate mensajes (1 para registrarlos todos)
+		@Value(value = "${listener.log.sampleRate}")
+		private int sampleRate;
+
 		private final CountDownLatch latch = new CountDownLatch(3);
 
 		private final CountDownLatch partitionLatch = new CountDownLatch(2);
@@ -172,67 +329,178 @@ public class KafkaApplication {
 
 		private final CountDownLatch partitionAllLatch = new CountDownLatch(100);
 
+		@Autowired
+		private OrderedParallelProcessor<String, String> orderedProcessor;
+
+		@Autowired
+		private PartitionedStateStore partitionCountStore;
+
+		@Value(value = "${partitioned.store.enabled}")
+		private boolean storeEnabled;
+
+		@Autowired
+		private WindowedAggregator partitionAggregator;
+
+		// Envia dentro de la transacción del contenedor transactionalKafkaListenerContainerFactory
+		@Autowired
+		@Qualifier("transactionalKafkaTemplate")
+		private KafkaTemplate<String, String> transactionalKafkaTemplate;
+
+		@Value(value = "${transformed.topic.name}")
+		private String transformedTopicName;
+
+		// Muestreo aleatorio, sin contadores compartidos entre los hilos consumidores
+		private boolean sampled() {
+			return sampled(1);
+		}
+
+		// Un lote de n mensajes se registra con probabilidad n / sampleRate, de modo
+		// que los listener batch tampoco registran mas de uno de cada sampleRate
+		// mensajes
+		private boolean sampled(int messages) {
+			return LOG.isInfoEnabled()
+					&& (sampleRate <= messages || ThreadLocalRandom.current().nextInt(sampleRate) < messages);
+		}
+
 		// Escucha el topico baeldung con el grupo foo
-		@KafkaListener(topics = "${message.topic.name}", groupId = "foo", containerFactory = "fooKafkaListenerContainerFactory")
+		@KafkaListener(topics = "${message.topic.name}", groupId = "foo", containerFactory = "fooKafkaListenerContainerFactory", autoStartup = "#{!${message.topic.fanout}}")
 		public void listenGroupFoo(String message) {
-			System.out.println("------------------------------");
-			System.out.println("Received Message in group 'foo': " + message);
-			System.out.println("------------------------------");
+			if (sampled())
+				LOG.info("Received Message in group 'foo': {}", message);
 			latch.countDown();
 		}
 
 		// Escucha el topico baeldung con el grupo bar
-		@KafkaListener(topics = "${message.topic.name}", groupId = "bar", containerFactory = "barKafkaListenerContainerFactory")
+		@KafkaListener(topics = "${message.topic.name}", groupId = "bar", containerFactory = "barKafkaListenerContainerFactory", autoStartup = "#{!${message.topic.fanout}}")
 		public void listenGroupBar(String message) {
-			System.out.println("------------------------------");
-			System.out.println("Received Message in group 'bar': " + message);
-			System.out.println("------------------------------");
+			if (sampled())
+				LOG.info("Received Message in group 'bar': {}", message);
 			latch.countDown();
 		}
 
 		// Escucha en el topico baeldung, con un grupo por defecto, sin especificar
 		// grupo
-		@KafkaListener(topics = "${message.topic.name}", containerFactory = "headersKafkaListenerContainerFactory")
+		@KafkaListener(topics = "${message.topic.name}", containerFactory = "headersKafkaListenerContainerFactory", autoStartup = "#{!${message.topic.fanout}}")
 		public void listenWithHeaders(@Payload String message,
 				@Header(KafkaHeaders.RECEIVED_PARTITION_ID) int partition) {
-			System.out.println("------------------------------");
-			System.out.println("Received Message: " + message + " from partition: " + partition);
-			System.out.println("------------------------------");
+			if (sampled())
+				LOG.info("Received Message: {} from partition: {}", message, partition);
 			latch.countDown();
 		}
 
+		// Con message.topic.fanout=true sustituye a los tres listener anteriores: un
+		// solo consumidor lee el topico y entrega cada mensaje a los tres
+		@KafkaListener(topics = "${message.topic.name}", groupId = "fanout", containerFactory = "fanoutKafkaListenerContainerFactory", autoStartup = "${message.topic.fanout}")
+		public void listenFanOut(ConsumerRecord<String, String> record) {
+			listenGroupFoo(record.value());
+			listenGroupBar(record.value());
+			listenWithHeaders(record.value(), record.partition());
+		}
+
 		@KafkaListener(groupId = "partitions", containerFactory = "partitionsKafkaListenerContainerFactory", topicPartitions = @TopicPartition(topic = "${partitioned.topic.name}", partitions = {
 				"0", "3" }))
 		public void listenToParition(@Payload String message,
 				@Header(KafkaHeaders.RECEIVED_PARTITION_ID) int partition) {
-			System.out.println("------------------------------");
-			System.out.println("Received Message: " + message + " from partition: " + partition);
-			System.out.println("------------------------------");
+			if (sampled())
+				LOG.info("Received Message: {} from partition: {}", message, partition);
 			this.partitionLatch.countDown();
 		}
 
-		@KafkaListener(groupId = "partitionsAll", containerFactory = "partitionsKafkaListenerContainerFactoryAll", topics = "${partitioned.topic.name}")
-		public void listenToParitionAll(@Payload String message,
-				@Header(KafkaHeaders.RECEIVED_PARTITION_ID) int partition) {
-			System.out.println("------------------------------");
-			System.out.println("Mensaje: " + message + " en la particion " + partition);
-			System.out.println("------------------------------");
+		@KafkaListener(id = "partitionsAll", groupId = "partitionsAll", containerFactory = "partitionsKafkaListenerContainerFactoryAll", topics = "${partitioned.topic.name}")
+		public void listenToParitionAll(@Payload(required = false) String message,
+				@Header(KafkaHeaders.RECEIVED_PARTITION_ID) int partition,
+				@Header(KafkaHeaders.OFFSET) long offset,
+				@Header(name = KafkaHeaders.RECEIVED_MESSAGE_KEY, required = false) String key) {
+			// Con partitioned.store.enabled=true cuenta los mensajes de cada clave
+			final long count = key == null || !storeEnabled ? 0
+					: partitionCountStore.increment(partition, offset, key, 1);
+			if (sampled())
+				LOG.info("Mensaje: {} en la particion {} ({} mensajes con la clave {})", message, partition, count, key);
 			this.partitionAllLatch.countDown();
 		}
 
-		@KafkaListener(topics = "${filtered.topic.name}", containerFactory = "filterKafkaListenerContainerFactory")
-		public void listenWithFilter(String message) {
-			System.out.println("------------------------------");
-			System.out.println("Recieved Message in filtered listener: " + message);
-			System.out.println("------------------------------");
+		// Reanuda las particiones de partitionsAll que ya tienen su estado restaurado.
+		// El evento se publica en el hilo consumidor del contenedor
+		@EventListener(condition = "event.listenerId.startsWith('partitionsAll-')")
+		public void partitionsAllIdle(ListenerContainerPartitionIdleEvent event) {
+			partitionCountStore.resumeIfRestored(event.getTopicPartition(), event.getConsumer());
+		}
+
+		// Agrega los mensajes por ventana de tiempo y clave; los agregados se publican
+		// en el topico aggregation al cerrarse cada ventana
+		@KafkaListener(id = "aggregation", groupId = "aggregation", containerFactory = "aggregationKafkaListenerContainerFactory", topics = "${partitioned.topic.name}", autoStartup = "${aggregation.enabled}")
+		public void aggregate(ConsumerRecord<String, String> record, Consumer<?, ?> consumer) {
+			partitionAggregator.add(record, consumer);
+		}
+
+		// Cierra las ventanas de una particion sin mensajes. El evento se publica en
+		// el hilo consumidor del contenedor, el mismo que usa el estado de la
+		// particion
+		@EventListener(condition = "event.listenerId.startsWith('aggregation-')")
+		public void aggregationIdle(ListenerContainerPartitionIdleEvent event) {
+			partitionAggregator.punctuate(event.getTopicPartition(), event.getIdleTime(), event.getConsumer());
+		}
+
+		// Version batch de listenGroupFoo. Recibe todos los registros de un poll de
+		// una vez. Solo arranca con kafka.batch.enabled=true
+		@KafkaListener(topics = "${message.topic.name}", groupId = "fooBatch", containerFactory = "fooBatchKafkaListenerContainerFactory", autoStartup = "${kafka.batch.enabled}")
+		public void listenGroupFooBatch(List<ConsumerRecord<String, String>> records) {
+			if (sampled(records.size()))
+				LOG.info("Received batch in group 'fooBatch': {} messages", records.size());
+		}
+
+		// Como listenToParitionAll, pero los mensajes se procesan en paralelo en los
+		// hilos de orderedProcessor. Los mensajes con la misma clave se procesan en
+		// orden. Solo arranca con kafka.ordered.enabled=true
+		@KafkaListener(groupId = "partitionsAllOrdered", containerFactory = "orderedPartitionsKafkaListenerContainerFactory", topics = "${partitioned.topic.name}", autoStartup = "${kafka.ordered.enabled}")
+		public void listenToParitionAllOrdered(ConsumerRecord<String, String> record, Acknowledgment ack) {
+			orderedProcessor.submit(record, ack, r -> {
+				if (sampled())
+					LOG.info("Mensaje: {} con clave {} en la particion {}", r.value(), r.key(), r.partition());
+			});
+		}
+
+		// Pipeline consumir-transformar-producir exactly-once: cada lote se publica
+		// transformado en el topico transformed dentro de la misma transacción en la
+		// que se confirman sus offsets. Los tombstones se publican tal cual
+		@KafkaListener(groupId = "transform", containerFactory = "transactionalKafkaListenerContainerFactory", topics = "${partitioned.topic.name}", autoStartup = "${kafka.transaction.enabled}")
+		@SuppressWarnings("null")
+		public void transform(List<ConsumerRecord<String, String>> records) {
+			for (final ConsumerRecord<String, String> record : records)
+				transactionalKafkaTemplate.send(transformedTopicName, record.key(),
+						record.value() == null ? null : record.value().toUpperCase());
+		}
+
+		// Version batch de listenToParitionAll
+		@KafkaListener(groupId = "partitionsAllBatch", containerFactory = "partitionsBatchKafkaListenerContainerFactoryAll", topics = "${partitioned.topic.name}", autoStartup = "${kafka.batch.enabled}")
+		public void listenToParitionAllBatch(List<ConsumerRecord<String, String>> records) {
+			if (sampled(records.size()))
+				LOG.info("Lote de {} mensajes", records.size());
+		}
+
+		// Reintentos no bloqueantes: si el listener falla, el mensaje pasa a los
+		// topicos de reintento (filtered-retry-1000, filtered-retry-5000...) y tras el
+		// ultimo intento al DLT del grupo, filtered.filter.DLT. El grupo se indica
+		// aqui para que los contenedores de reintento usen su propio grupo
+		// (filter-retry-1000...) y no provoquen rebalanceos en el del topico principal
+		// Los tombstones no se filtran: llegan con message a null
+		@RetryableTopic(attempts = "${kafka.retry.maxAttempts}", backoff = @Backoff(delayExpression = "${kafka.retry.initialIntervalMs}", multiplierExpression = "${kafka.retry.multiplier}", maxDelayExpression = "${kafka.retry.maxIntervalMs}"), dltTopicSuffix = ".filter.DLT")
+		@KafkaListener(groupId = "filter", topics = "${filtered.topic.name}", containerFactory = "filterKafkaListenerContainerFactory")
+		public void listenWithFilter(@Payload(required = false) String message) {
+			if (sampled())
+				LOG.info("Recieved Message in filtered listener: {}", message);
 			this.filterLatch.countDown();
 		}
 
-		@KafkaListener(topics = "${greeting.topic.name}", containerFactory = "greetingKafkaListenerContainerFactory")
+		// Como listenWithFilter, con el DLT greeting.greeting.DLT. Los reintentos y el
+		// DLT se publican con greetingDeadLetterKafkaTemplate, que tambien admite los
+		// bytes de los mensajes que no se pudieron deserializar; esos no se
+		// reintentan, van directos al DLT
+		@RetryableTopic(attempts = "${kafka.retry.maxAttempts}", backoff = @Backoff(delayExpression = "${kafka.retry.initialIntervalMs}", multiplierExpression = "${kafka.retry.multiplier}", maxDelayExpression = "${kafka.retry.maxIntervalMs}"), dltTopicSuffix = ".greeting.DLT", kafkaTemplate = "greetingDeadLetterKafkaTemplate")
+		@KafkaListener(groupId = "greeting", topics = "${greeting.topic.name}", containerFactory = "greetingKafkaListenerContainerFactory")
 		public void greetingListener(Greeting greeting) {
-			System.out.println("------------------------------");
-			System.out.println("Recieved greeting message: " + greeting);
-			System.out.println("------------------------------");
+			if (sampled())
+				LOG.info("Recieved greeting message: {}", greeting);
 			this.greetingLatch.countDown();
 		}
 	}
@@ -1,18 +1,50 @@
 package com.euge.kafka;
 
+import java.time.Duration;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+import org.apache.kafka.clients.admin.AdminClient;
 import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.CooperativeStickyAssignor;
+import org.apache.kafka.clients.consumer.StickyAssignor;
+import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.serialization.StringDeserializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.properties.bind.Binder;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+import org.springframework.core.task.support.TaskExecutorAdapter;
 import org.springframework.kafka.annotation.EnableKafka;
 import org.springframework.kafka.config.ConcurrentKafkaListenerContainerFactory;
+import org.springframework.kafka.config.KafkaListenerEndpointRegistry;
 import org.springframework.kafka.core.ConsumerFactory;
-import org.springframework.kafka.core.DefaultKafkaConsumerFactory;
+import org.springframework.kafka.core.KafkaAdmin;
+import org.springframework.kafka.core.KafkaOperations;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.listener.CompositeBatchInterceptor;
+import org.springframework.kafka.listener.CompositeRecordInterceptor;
+import org.springframework.kafka.listener.ContainerProperties.AckMode;
+import org.springframework.kafka.listener.ContainerProperties.EOSMode;
+import org.springframework.kafka.listener.DeadLetterPublishingRecoverer;
+import org.springframework.kafka.listener.RecoveringBatchErrorHandler;
+import org.springframework.kafka.listener.SeekToCurrentErrorHandler;
+import org.springframework.kafka.listener.adapter.RecordFilterStrategy;
+import org.springframework.kafka.support.serializer.ErrorHandlingDeserializer;
 import org.springframework.kafka.support.serializer.JsonDeserializer;
+import org.springframework.kafka.transaction.KafkaTransactionManager;
+import org.springframework.util.backoff.FixedBackOff;
+
+import io.micrometer.core.instrument.MeterRegistry;
 
 //@EnableKafka annotation is required on the configuration class to enable detection of @KafkaListener annotation 
 //on spring managed beans.
@@ -20,105 +52,545 @@ import org.springframework.kafka.support.serializer.JsonDeserializer;
 @Configuration
 public class KafkaConsumerConfig {
 
+	private static final Logger LOG = LoggerFactory.getLogger(KafkaConsumerConfig.class);
+
 	// Dirección del nodo de Kafka
 	@Value(value = "${kafka.bootstrapAddress}")
 	private String bootstrapAddress;
 
-	// Configuración para el consumidor
-	public ConsumerFactory<String, String> consumerFactory(String groupId) {
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	// Para leer las propiedades de cada grupo
+	@Autowired
+	private Environment environment;
+
+	// Para consultar el numero de particiones de los topicos
+	@Autowired
+	private KafkaAdmin kafkaAdmin;
+
+	@Value(value = "${partitioned.topic.name}")
+	private String partitionedTopicName;
+
+	@Value(value = "${partitioned.topic.partitions}")
+	private int partitionedTopicPartitions;
+
+	// Para publicar los cambios del almacen de estado en su changelog
+	@Autowired
+	private KafkaTemplate<String, String> kafkaTemplate;
+
+	@Value(value = "${partitioned.store.changelog}")
+	private String changelogTopicName;
+
+	// El almacen de estado de partitionsAll solo se usa con
+	// partitioned.store.enabled=true
+	@Value(value = "${partitioned.store.enabled}")
+	private boolean storeEnabled;
+
+	@Value(value = "${partitioned.store.resumeCheckMs}")
+	private long storeResumeCheckMs;
+
+	// Reintentos en el propio consumidor antes de enviar el mensaje al DLT
+	@Value(value = "${kafka.errors.blockingRetries}")
+	private long blockingRetries;
+
+	@Value(value = "${kafka.errors.blockingIntervalMs}")
+	private long blockingIntervalMs;
+
+	// Agregación por ventanas del topico partitioned
+	@Value(value = "${aggregation.topic.name}")
+	private String aggregationTopicName;
+
+	@Value(value = "${aggregation.windowSizeMs}")
+	private long aggregationWindowSizeMs;
+
+	@Value(value = "${aggregation.advanceMs}")
+	private long aggregationAdvanceMs;
+
+	@Value(value = "${aggregation.graceMs}")
+	private long aggregationGraceMs;
+
+	@Value(value = "${aggregation.emitIntervalMs}")
+	private long aggregationEmitIntervalMs;
+
+	// Pipeline transaccional: registros por transacción
+	@Autowired
+	private KafkaTransactionManager<String, String> kafkaTransactionManager;
+
+	@Value(value = "${kafka.transaction.batchSize}")
+	private int transactionBatchSize;
+
+	// Numero maximo de hilos consumidores por contenedor en este nodo
+	@Value(value = "${kafka.consumer.maxConcurrency}")
+	private int maxConcurrency;
+
+	@Value(value = "${kafka.consumer.partitionLookupTimeoutMs}")
+	private long partitionLookupTimeoutMs;
+
+	// Particiones de cada topico, consultadas una sola vez
+	private final Map<String, Integer> partitionCounts = new ConcurrentHashMap<>();
+
+	// Hilos y registros en vuelo del procesamiento paralelo ordenado por clave
+	@Value(value = "${kafka.ordered.workers}")
+	private int orderedWorkers;
+
+	@Value(value = "${kafka.ordered.maxInFlight}")
+	private int orderedMaxInFlight;
+
+	// Ejecutar los consumidores y los listener en hilos virtuales (Java 21+)
+	@Value(value = "${kafka.virtualThreads.enabled}")
+	private boolean virtualThreads;
+
+	// Patron que descarta mensajes en el grupo filter, y cabecera en la que se
+	// busca (vacio para buscarlo en el valor)
+	@Value(value = "${filtered.pattern}")
+	private String filteredPattern;
+
+	@Value(value = "${filtered.header}")
+	private String filteredHeader;
+
+	// Formato del valor en el topico greeting: "json" o "binary"
+	@Value(value = "${greeting.serialization}")
+	private String greetingSerialization;
+
+	// Control de flujo adaptativo
+	@Autowired
+	private KafkaListenerEndpointRegistry kafkaListenerEndpointRegistry;
+
+	@Value(value = "${kafka.flow.enabled}")
+	private boolean flowEnabled;
+
+	@Value(value = "${kafka.flow.intervalMs}")
+	private long flowIntervalMs;
+
+	@Value(value = "${kafka.flow.pauseLatencyMs}")
+	private long flowPauseLatencyMs;
+
+	@Value(value = "${kafka.flow.pauseMs}")
+	private long flowPauseMs;
+
+	@Value(value = "${kafka.flow.pauseQueueDepth}")
+	private int flowPauseQueueDepth;
+
+	@Value(value = "${kafka.flow.resumeQueueDepth}")
+	private int flowResumeQueueDepth;
+
+	// Arranque rapido: los contenedores arrancan en segundo plano cuando la
+	// aplicación esta lista, y no se consulta al broker al crear las beans
+	@Value(value = "${kafka.fastStart}")
+	private boolean fastStart;
+
+	@Autowired
+	private StartupMetrics startupMetrics;
+
+	// Ajustes para los consumidores en modo batch
+	@Value(value = "${kafka.batch.maxPollRecords}")
+	private int batchMaxPollRecords;
+
+	@Value(value = "${kafka.batch.fetchMinBytes}")
+	private int batchFetchMinBytes;
+
+	@Value(value = "${kafka.batch.fetchMaxWaitMs}")
+	private int batchFetchMaxWaitMs;
+
+	// Configuración base de todos los consumidores
+	private Map<String, Object> baseConsumerProps() {
 		final Map<String, Object> props = new HashMap<>();
 		// Dirección del nodo
 		props.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapAddress);
-		// Usaremos este grupo para el consumidor
-		props.put(ConsumerConfig.GROUP_ID_CONFIG, groupId);
-		// Serializadores para la clave y el valor. Esperamos un string
-		props.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class);
-		props.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class);
-		return new DefaultKafkaConsumerFactory<>(props);
+		// Rebalanceo incremental: al entrar o salir un consumidor solo se mueven
+		// las particiones afectadas, el resto sigue consumiendo
+		props.put(ConsumerConfig.PARTITION_ASSIGNMENT_STRATEGY_CONFIG,
+				Collections.singletonList(CooperativeStickyAssignor.class));
+		return props;
 	}
 
-	// Consume en el grupo foo
+	// Factorias de consumidores compartidas por todos los contenedores. El grupo se
+	// indica en cada contenedor
 	@Bean
-	public ConcurrentKafkaListenerContainerFactory<String, String> fooKafkaListenerContainerFactory() {
+	public ConsumerFactoryRegistry consumerFactoryRegistry() {
+		return new ConsumerFactoryRegistry(baseConsumerProps(), Binder.get(environment), meterRegistry);
+	}
+
+	// Factoria de contenedores que consumen <string,string> en el grupo indicado
+	private ConcurrentKafkaListenerContainerFactory<String, String> stringContainerFactory(String groupId,
+			Map<String, ?> consumerProps) {
 		final ConcurrentKafkaListenerContainerFactory<String, String> factory = new ConcurrentKafkaListenerContainerFactory<>();
-		ConsumerFactory<String, String> factoria = consumerFactory("foo");
+		ConsumerFactory<String, String> factoria = consumerFactoryRegistry().stringFactory();
 		if (factoria == null)
 			throw new RuntimeException("no pudo crearse la factoria");
 		factory.setConsumerFactory(factoria);
+		configureContainer(factory, groupId, consumerProps);
 		return factory;
 	}
 
+	private boolean useVirtualThreads() {
+		if (virtualThreads && !VirtualThreads.isAvailable()) {
+			LOG.warn("kafka.virtualThreads.enabled=true pero este JDK no tiene hilos virtuales; se usan hilos de plataforma");
+			return false;
+		}
+		return virtualThreads;
+	}
+
+	// Configuración comun a todos los contenedores:
+	// - Grupo y propiedades del consumidor del contenedor, mas las configuradas
+	// para el grupo
+	// - Con hilos virtuales cada consumidor, y por tanto cada invocación del
+	// listener, corre en un hilo virtual; una llamada bloqueante dentro del
+	// listener no ocupa un hilo del sistema
+	// - Metricas del listener y del arranque y, con kafka.flow.enabled, control de
+	// flujo
+	// - Si el listener falla se reintenta kafka.errors.blockingRetries veces y
+	// luego el mensaje se publica en el DLT del grupo
+	private <K, V> void configureContainer(ConcurrentKafkaListenerContainerFactory<K, V> factory, String groupId,
+			Map<String, ?> consumerProps) {
+		consumerFactoryRegistry().configure(factory, groupId, consumerProps);
+		if (useVirtualThreads())
+			factory.getContainerProperties()
+					.setConsumerTaskExecutor(new TaskExecutorAdapter(VirtualThreads.newExecutor(groupId + "-")));
+		final ListenerMetricsInterceptor<K, V> metrics = new ListenerMetricsInterceptor<>(meterRegistry, groupId);
+		final StartupMetrics.FirstRecordInterceptor<K, V> startup = startupMetrics.interceptor();
+		if (flowEnabled) {
+			final AdaptiveFlowController.FlowInterceptor<K, V> flow = adaptiveFlowController().interceptor();
+			factory.setRecordInterceptor(new CompositeRecordInterceptor<>(metrics, flow, startup));
+			factory.setBatchInterceptor(new CompositeBatchInterceptor<>(metrics, flow, startup));
+		} else {
+			factory.setRecordInterceptor(new CompositeRecordInterceptor<>(metrics, startup));
+			factory.setBatchInterceptor(new CompositeBatchInterceptor<>(metrics, startup));
+		}
+		factory.setErrorHandler(new SeekToCurrentErrorHandler(deadLetterRecoverer(groupId, kafkaTemplate),
+				blockingBackOff()));
+	}
+
+	// Publica los mensajes que no se han podido procesar en el topico
+	// <topico>.<grupo>.DLT, de modo que cada grupo tiene su propio DLT y un
+	// mensaje que falla en un grupo no afecta al resto. Con particion -1 el
+	// productor elige la particion por la clave
+	private DeadLetterPublishingRecoverer deadLetterRecoverer(String groupId, KafkaOperations<?, ?> template) {
+		return new DeadLetterPublishingRecoverer(template,
+				(record, ex) -> new TopicPartition(record.topic() + "." + groupId + ".DLT", -1));
+	}
+
+	// Pausa y numero de reintentos en el consumidor. Mientras se reintenta la
+	// particion no avanza, por eso por defecto no hay reintentos y el mensaje sale
+	// del camino del consumidor; los reintentos con espera se hacen en los topicos
+	// de reintento (ver @RetryableTopic en KafkaApplication)
+	private FixedBackOff blockingBackOff() {
+		return new FixedBackOff(blockingIntervalMs, blockingRetries);
+	}
+
+	// Los contenedores en modo batch necesitan un gestor de errores de lotes.
+	// RecoveringBatchErrorHandler confirma los registros anteriores al que falla
+	// (si el listener lanza BatchListenerFailedException) y reintenta desde el
+	// que falla, que acaba en el DLT
+	private <K, V> void batchErrorHandling(ConcurrentKafkaListenerContainerFactory<K, V> factory, String groupId) {
+		factory.setBatchErrorHandler(new RecoveringBatchErrorHandler(deadLetterRecoverer(groupId, kafkaTemplate),
+				blockingBackOff()));
+	}
+
+	// Con kafka.fastStart, los contenedores no arrancan con el contexto sino en
+	// segundo plano. Se aplica a todos los contenedores del registro, tambien a los
+	// de los topicos de reintento
+	@Bean
+	public DeferredContainerStarter deferredContainerStarter() {
+		return new DeferredContainerStarter(kafkaAdmin, kafkaListenerEndpointRegistry, fastStart);
+	}
+
+	// Numero de hilos consumidores para un topico: uno por particion, con un
+	// maximo de kafka.consumer.maxConcurrency. Con mas hilos que particiones los
+	// hilos sobrantes quedarian ociosos
+	private int concurrencyFor(String topic) {
+		return Math.max(1, Math.min(partitionCount(topic), maxConcurrency));
+	}
+
+	// Consulta al broker el numero de particiones del topico. Si el topico aun no
+	// existe (KafkaAdmin lo crea despues de instanciar las beans) o el broker no
+	// responde, usamos el numero de particiones con el que lo crea
+	// KafkaTopicConfig. Con kafka.fastStart no se consulta, para no esperar al
+	// broker durante el arranque. El resultado se guarda: varias factorias leen
+	// el mismo topico, y con el broker caido cada consulta esperaria
+	// partitionLookupTimeoutMs
+	private int partitionCount(String topic) {
+		if (fastStart)
+			return configuredPartitionCount(topic);
+		return partitionCounts.computeIfAbsent(topic, this::describePartitionCount);
+	}
+
+	private int describePartitionCount(String topic) {
+		final AdminClient admin = AdminClient.create(kafkaAdmin.getConfigurationProperties());
+		try {
+			return admin.describeTopics(Collections.singleton(topic)).all()
+					.get(partitionLookupTimeoutMs, TimeUnit.MILLISECONDS).get(topic).partitions().size();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (final ExecutionException | TimeoutException e) {
+			// Usamos el valor configurado
+		} finally {
+			admin.close(Duration.ZERO);
+		}
+		return configuredPartitionCount(topic);
+	}
+
+	private int configuredPartitionCount(String topic) {
+		return topic.equals(partitionedTopicName) ? partitionedTopicPartitions : 1;
+	}
+
+	// Propiedades del consumidor en modo batch. Cada poll entrega una lista de
+	// registros; pedimos al broker que acumule datos antes de responder para que
+	// los lotes sean mas grandes
+	private Map<String, Object> batchConsumerProps() {
+		final Map<String, Object> props = new HashMap<>();
+		// Tamaño maximo del lote
+		props.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, batchMaxPollRecords);
+		// El broker espera a tener fetch.min.bytes, o a que pase fetch.max.wait.ms
+		props.put(ConsumerConfig.FETCH_MIN_BYTES_CONFIG, batchFetchMinBytes);
+		props.put(ConsumerConfig.FETCH_MAX_WAIT_MS_CONFIG, batchFetchMaxWaitMs);
+		return props;
+	}
+
+	// Factoria de contenedores en modo batch. El listener recibe la lista de
+	// registros de cada poll y los offsets se confirman una vez por lote
+	private ConcurrentKafkaListenerContainerFactory<String, String> batchKafkaListenerContainerFactory(
+			String groupId) {
+		final ConcurrentKafkaListenerContainerFactory<String, String> factory = stringContainerFactory(groupId,
+				batchConsumerProps());
+		factory.setBatchListener(true);
+		batchErrorHandling(factory, groupId);
+		factory.getContainerProperties().setAckMode(AckMode.BATCH);
+		return factory;
+	}
+
+	// Consume en el grupo foo
+	@Bean
+	public ConcurrentKafkaListenerContainerFactory<String, String> fooKafkaListenerContainerFactory() {
+		return stringContainerFactory("foo", Collections.emptyMap());
+	}
+
 	// Consume en el grupo bar
 	@Bean
 	public ConcurrentKafkaListenerContainerFactory<String, String> barKafkaListenerContainerFactory() {
-		final ConcurrentKafkaListenerContainerFactory<String, String> factory = new ConcurrentKafkaListenerContainerFactory<>();
-		ConsumerFactory<String, String> factoria = consumerFactory("bar");
-		if (factoria == null)
-			throw new RuntimeException("no pudo crearse la factoria");
-		factory.setConsumerFactory(factoria);
-		return factory;
+		return stringContainerFactory("bar", Collections.emptyMap());
 	}
 
 	// Consume en el grupo headers
 	@Bean
 	public ConcurrentKafkaListenerContainerFactory<String, String> headersKafkaListenerContainerFactory() {
-		final ConcurrentKafkaListenerContainerFactory<String, String> factory = new ConcurrentKafkaListenerContainerFactory<>();
-		ConsumerFactory<String, String> factoria = consumerFactory("headers");
-		if (factoria == null)
-			throw new RuntimeException("no pudo crearse la factoria");
-		factory.setConsumerFactory(factoria);
-		return factory;
+		return stringContainerFactory("headers", Collections.emptyMap());
+	}
+
+	// Consume en el grupo fanout. Con message.topic.fanout=true un unico consumidor
+	// lee el topico baeldung y entrega cada mensaje a los tres listener foo, bar y
+	// headers, en lugar de tener tres consumidores leyendo lo mismo
+	@Bean
+	public ConcurrentKafkaListenerContainerFactory<String, String> fanoutKafkaListenerContainerFactory() {
+		return stringContainerFactory("fanout", Collections.emptyMap());
 	}
 
 	// Consume en el grupo partitions
 	@Bean
 	public ConcurrentKafkaListenerContainerFactory<String, String> partitionsKafkaListenerContainerFactory() {
-		final ConcurrentKafkaListenerContainerFactory<String, String> factory = new ConcurrentKafkaListenerContainerFactory<>();
-		ConsumerFactory<String, String> factoria = consumerFactory("partitions");
-		if (factoria == null)
-			throw new RuntimeException("no pudo crearse la factoria");
-		factory.setConsumerFactory(factoria);
-		return factory;
+		return stringContainerFactory("partitions", Collections.emptyMap());
 	}
 
 	// Consume en el grupo partitions
 	@Bean
 	public ConcurrentKafkaListenerContainerFactory<String, String> partitionsKafkaListenerContainerFactoryAll() {
-		final ConcurrentKafkaListenerContainerFactory<String, String> factory = new ConcurrentKafkaListenerContainerFactory<>();
-		ConsumerFactory<String, String> factoria = consumerFactory("partitionsAll");
-		if (factoria == null)
-			throw new RuntimeException("no pudo crearse la factoria");
-		factory.setConsumerFactory(factoria);
+		final ConcurrentKafkaListenerContainerFactory<String, String> factory = stringContainerFactory("partitionsAll",
+				Collections.emptyMap());
+		// Un hilo por particion
+		factory.setConcurrency(concurrencyFor(partitionedTopicName));
+		if (storeEnabled) {
+			// El estado de cada particion acompaña a la particion en los rebalanceos.
+			// Mientras se restaura, la particion esta pausada, y cada particion sin
+			// mensajes (pausada o no) genera un ListenerContainerPartitionIdleEvent cada
+			// partitioned.store.resumeCheckMs, con el que se reanuda al terminar
+			factory.getContainerProperties().setConsumerRebalanceListener(partitionCountStore());
+			factory.getContainerProperties().setIdlePartitionEventInterval(storeResumeCheckMs);
+			// La inactividad solo se comprueba al volver el poll
+			factory.getContainerProperties().setPollTimeout(storeResumeCheckMs);
+			factory.setContainerCustomizer(partitionCountStore()::bind);
+		}
+		return factory;
+	}
+
+	// Estado del grupo partitionsAll: numero de mensajes recibidos por clave
+	@Bean
+	public PartitionedStateStore partitionCountStore() {
+		return new PartitionedStateStore(changelogTopicName, kafkaTemplate,
+				consumerFactoryRegistry().stringFactory(), storeResumeCheckMs);
+	}
+
+	// Agregados por ventana de tiempo y clave del topico partitioned
+	@Bean
+	public WindowedAggregator partitionAggregator() {
+		return new WindowedAggregator(aggregationWindowSizeMs, aggregationAdvanceMs, aggregationGraceMs,
+				aggregationEmitIntervalMs, KafkaConsumerConfig::trailingNumber, aggregationTopicName, kafkaTemplate,
+				meterRegistry);
+	}
+
+	// Valor que se suma en las ventanas: el numero con el que acaba el mensaje
+	// ("Mensaje 42" suma 42), o 0 si no acaba en un numero
+	static long trailingNumber(String value) {
+		if (value == null)
+			return 0;
+		long result = 0;
+		long factor = 1;
+		for (int i = value.length() - 1; i >= 0 && factor <= 1_000_000_000_000_000L; i--) {
+			final char c = value.charAt(i);
+			if (c < '0' || c > '9')
+				break;
+			result += (c - '0') * factor;
+			factor *= 10;
+		}
+		return result;
+	}
+
+	// Consume en el grupo aggregation. Los offsets los confirma el agregador
+	// despues de publicar las ventanas cerradas. Cada particion sin mensajes genera
+	// un ListenerContainerPartitionIdleEvent cada aggregation.emitIntervalMs, con el
+	// que se cierran sus ventanas aunque las demas particiones sigan recibiendo
+	// mensajes
+	@Bean
+	public ConcurrentKafkaListenerContainerFactory<String, String> aggregationKafkaListenerContainerFactory() {
+		final ConcurrentKafkaListenerContainerFactory<String, String> factory = stringContainerFactory("aggregation",
+				Collections.emptyMap());
+		factory.setConcurrency(concurrencyFor(partitionedTopicName));
+		factory.getContainerProperties().setConsumerRebalanceListener(partitionAggregator());
+		factory.getContainerProperties().setAckMode(AckMode.MANUAL);
+		factory.getContainerProperties().setIdlePartitionEventInterval(aggregationEmitIntervalMs);
+		// La inactividad solo se comprueba al volver el poll
+		factory.getContainerProperties().setPollTimeout(aggregationEmitIntervalMs);
+		return factory;
+	}
+
+	// Consume en el grupo fooBatch, en modo batch
+	@Bean
+	public ConcurrentKafkaListenerContainerFactory<String, String> fooBatchKafkaListenerContainerFactory() {
+		return batchKafkaListenerContainerFactory("fooBatch");
+	}
+
+	// Consume en el grupo partitionsAllBatch, en modo batch
+	@Bean
+	public ConcurrentKafkaListenerContainerFactory<String, String> partitionsBatchKafkaListenerContainerFactoryAll() {
+		final ConcurrentKafkaListenerContainerFactory<String, String> factory = batchKafkaListenerContainerFactory(
+				"partitionsAllBatch");
+		factory.setConcurrency(concurrencyFor(partitionedTopicName));
 		return factory;
 	}
 
+	// Consume en el grupo transform, en modo batch y dentro de transacciones. Cada
+	// lote de hasta kafka.transaction.batchSize registros se procesa en una
+	// transacción que incluye los mensajes que publique el listener con
+	// transactionalKafkaTemplate y los offsets del lote: o se confirma todo o
+	// nada, de modo que un rebalanceo no produce duplicados
+	@Bean
+	public ConcurrentKafkaListenerContainerFactory<String, String> transactionalKafkaListenerContainerFactory() {
+		final Map<String, Object> props = new HashMap<>();
+		props.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, transactionBatchSize);
+		// Solo se leen los mensajes de transacciones confirmadas
+		props.put(ConsumerConfig.ISOLATION_LEVEL_CONFIG, "read_committed");
+		// Rebalanceo eager. Con el cooperativo el poll sigue devolviendo registros
+		// mientras el grupo se rebalancea, y la transacción de ese lote confirma sus
+		// offsets con una generación del grupo que ya no es valida: falla
+		// (CommitFailedException) y se aborta. Con el eager el poll que vuelve a entrar
+		// en el grupo no devuelve registros hasta que termina el rebalanceo, y el
+		// contenedor confirma cada transacción antes del siguiente poll
+		props.put(ConsumerConfig.PARTITION_ASSIGNMENT_STRATEGY_CONFIG, StickyAssignor.class.getName());
+		final ConcurrentKafkaListenerContainerFactory<String, String> factory = stringContainerFactory("transform",
+				props);
+		factory.setBatchListener(true);
+		batchErrorHandling(factory, "transform");
+		factory.setConcurrency(concurrencyFor(partitionedTopicName));
+		factory.getContainerProperties().setTransactionManager(kafkaTransactionManager);
+		factory.getContainerProperties().setEosMode(EOSMode.BETA);
+		return factory;
+	}
+
+	// Procesa en paralelo los registros del grupo partitionsAllOrdered,
+	// respetando el orden de los registros con la misma clave. Los registros
+	// procesados fuera del hilo consumidor no pasan por el error handler del
+	// contenedor, asi que es el procesador el que reintenta y publica en el DLT del
+	// grupo, partitioned.partitionsAllOrdered.DLT
+	@Bean
+	public OrderedParallelProcessor<String, String> orderedParallelProcessor() {
+		return new OrderedParallelProcessor<>(orderedWorkers, orderedMaxInFlight,
+				useVirtualThreads() ? VirtualThreads.threadFactory("ordered-") : null, blockingBackOff(),
+				deadLetterRecoverer("partitionsAllOrdered", kafkaTemplate));
+	}
+
+	// Consume en el grupo partitionsAllOrdered. El listener entrega los registros
+	// a orderedParallelProcessor, que confirma los offsets manualmente cuando se
+	// han procesado todos los registros anteriores
+	@Bean
+	public ConcurrentKafkaListenerContainerFactory<String, String> orderedPartitionsKafkaListenerContainerFactory() {
+		final ConcurrentKafkaListenerContainerFactory<String, String> factory = stringContainerFactory("partitionsAllOrdered",
+				Collections.emptyMap());
+		factory.setConcurrency(concurrencyFor(partitionedTopicName));
+		factory.getContainerProperties().setAckMode(AckMode.MANUAL);
+		factory.getContainerProperties().setConsumerRebalanceListener(orderedParallelProcessor());
+		return factory;
+	}
+
+	// Control de flujo de todos los contenedores
+	@Bean
+	public AdaptiveFlowController adaptiveFlowController() {
+		final AdaptiveFlowController controller = new AdaptiveFlowController(kafkaListenerEndpointRegistry,
+				flowIntervalMs, flowPauseLatencyMs, flowPauseMs, flowPauseQueueDepth, flowResumeQueueDepth);
+		// Los registros del grupo partitionsAllOrdered se procesan fuera del hilo
+		// consumidor, asi que su presion se ve en la cola del procesador
+		controller.registerQueue("partitionsAllOrdered", orderedParallelProcessor()::inFlight);
+		return controller;
+	}
+
+	// Filtro del grupo filter. DiscardingDeserializer ya ha descartado los
+	// registros que contienen el patron y los ha marcado con una cabecera. Los
+	// tombstones tambien tienen el valor a null pero no se descartan
+	static final RecordFilterStrategy<String, String> FILTER_DISCARDED = record -> record.headers()
+			.lastHeader(DiscardingDeserializer.DISCARDED_HEADER) != null;
+
+	// Factoria de consumidores del grupo filter. Los mensajes que contienen
+	// filtered.pattern se descartan sobre los bytes recibidos, antes de
+	// convertirlos a String
+	public ConsumerFactory<String, String> filterConsumerFactory() {
+		final BytePatternMatcher matcher = new BytePatternMatcher(filteredPattern);
+		final String header = filteredHeader.isEmpty() ? null : filteredHeader;
+		return consumerFactoryRegistry().factory("filter", StringDeserializer::new,
+				() -> new DiscardingDeserializer<>(new StringDeserializer(), matcher, header));
+	}
+
 	// Consume en el grupo filter
 	// Este listener filtra mensajes
 	@Bean
 	public ConcurrentKafkaListenerContainerFactory<String, String> filterKafkaListenerContainerFactory() {
 		final ConcurrentKafkaListenerContainerFactory<String, String> factory = new ConcurrentKafkaListenerContainerFactory<>();
-		ConsumerFactory<String, String> factoria = consumerFactory("filter");
+		ConsumerFactory<String, String> factoria = filterConsumerFactory();
 		if (factoria == null)
 			throw new RuntimeException("no pudo crearse la factoria");
 		factory.setConsumerFactory(factoria);
-		// Filtra de modo que solo se consumiran por aqui mensajes que contengan el
+		// listenWithFilter tiene reintentos no bloqueantes (@RetryableTopic): su
+		// configuración sustituye el gestor de errores de configureContainer por uno
+		// que publica en los topicos de reintento y, al final, en el mismo DLT del
+		// grupo, filtered.filter.DLT. kafka.errors.blockingRetries no se aplica
+		configureContainer(factory, "filter", Collections.emptyMap());
+		// Filtra de modo que no se consumiran por aqui mensajes que contengan el
 		// valor "World"
-		factory.setRecordFilterStrategy(record -> record.value()
-				.contains("World"));
+		factory.setRecordFilterStrategy(FILTER_DISCARDED);
+		// Los offsets de los mensajes descartados se confirman con el resto del lote
+		factory.setAckDiscarded(true);
 		return factory;
 	}
 
 	// Configuración otro consumidor, en este caso esperamos en el valor un JSON
 	public ConsumerFactory<String, Greeting> greetingConsumerFactory() {
-		final Map<String, Object> props = new HashMap<>();
-		// Dirección del nodo
-		props.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapAddress);
-		// Usaremos este grupo para el consumidor. Es otro grupo diferente
-		props.put(ConsumerConfig.GROUP_ID_CONFIG, "greeting");
 		// Serializadores para la clave y el valor. Esperamos un string en la clave,
-		// pero un JSON en el valor
-		return new DefaultKafkaConsumerFactory<String, Greeting>(props,
-				new StringDeserializer(), new JsonDeserializer<>(Greeting.class));
+		// pero un JSON en el valor (o el formato binario de GreetingSerializer).
+		// Si el valor no se puede deserializar, ErrorHandlingDeserializer entrega el
+		// registro al gestor de errores, que lo envia al DLT, en lugar de fallar en
+		// cada poll sin avanzar
+		final boolean binary = "binary".equals(greetingSerialization);
+		return consumerFactoryRegistry().factory("greeting-" + greetingSerialization, StringDeserializer::new,
+				() -> new ErrorHandlingDeserializer<Greeting>(
+						binary ? new GreetingDeserializer() : new JsonDeserializer<Greeting>(Greeting.class)));
 	}
 
 	// Consume mensajes de grupo greeting. Estos mensajes en el valor reciben un
@@ -130,6 +602,11 @@ public class KafkaConsumerConfig {
 		if (factoria == null)
 			throw new RuntimeException("no pudo crearse la factoria");
 		factory.setConsumerFactory(factoria);
+		// Usaremos este grupo para el consumidor. Es otro grupo diferente
+		// Como en filter, el gestor de errores lo pone @RetryableTopic en
+		// greetingListener: reintentos y DLT greeting.greeting.DLT, publicados con
+		// greetingDeadLetterKafkaTemplate
+		configureContainer(factory, "greeting", Collections.emptyMap());
 		return factory;
 	}
 
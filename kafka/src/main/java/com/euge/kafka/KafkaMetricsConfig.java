@@ -0,0 +1,36 @@
+package com.euge.kafka;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+// Registro de metricas de la aplicación. Los productores y consumidores
+// publican aqui las metricas del cliente de Kafka (lag por particion, tamaño de
+// los lotes, tasa de errores...), y los listener las de ListenerMetricsInterceptor.
+// Para exportarlas basta con sustituir esta bean por el registro del sistema de
+// monitorización (Prometheus, JMX...)
+@Configuration
+public class KafkaMetricsConfig {
+
+	// Fichero en el que se escriben los tiempos de arranque (vacio para no
+	// escribirlos)
+	@Value(value = "${startup.output}")
+	private String startupOutput;
+
+	@Value(value = "${startup.exitAfterFirstRecord}")
+	private boolean startupExitAfterFirstRecord;
+
+	@Bean
+	public MeterRegistry meterRegistry() {
+		return new SimpleMeterRegistry();
+	}
+
+	// Tiempo hasta que la aplicación esta lista y hasta el primer registro recibido
+	@Bean
+	public StartupMetrics startupMetrics() {
+		return new StartupMetrics(meterRegistry(), startupOutput, startupExitAfterFirstRecord);
+	}
+}
@@ -4,14 +4,21 @@ import java.util.HashMap;
 import java.util.Map;
 
 import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.common.serialization.Serializer;
 import org.apache.kafka.common.serialization.StringSerializer;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
 import org.springframework.kafka.core.DefaultKafkaProducerFactory;
 import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.core.MicrometerProducerListener;
 import org.springframework.kafka.core.ProducerFactory;
 import org.springframework.kafka.support.serializer.JsonSerializer;
+import org.springframework.kafka.transaction.KafkaTransactionManager;
+
+import io.micrometer.core.instrument.MeterRegistry;
 
 @Configuration
 public class KafkaProducerConfig {
@@ -20,20 +27,109 @@ public class KafkaProducerConfig {
 	@Value(value = "${kafka.bootstrapAddress}")
 	private String bootstrapAddress;
 
+	// Formato del valor en el topico greeting: "json" o "binary"
+	@Value(value = "${greeting.serialization}")
+	private String greetingSerialization;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	// Prefijo del transactional.id de los productores transaccionales
+	@Value(value = "${kafka.transaction.idPrefix}")
+	private String transactionIdPrefix;
+
+	// Perfil del productor: "default" o "throughput"
+	@Value(value = "${kafka.producer.profile}")
+	private String profile;
+
+	// Ajustes del perfil throughput
+	@Value(value = "${kafka.producer.throughput.lingerMs}")
+	private int lingerMs;
+
+	@Value(value = "${kafka.producer.throughput.batchSize}")
+	private int batchSize;
+
+	@Value(value = "${kafka.producer.throughput.bufferMemory}")
+	private long bufferMemory;
+
+	@Value(value = "${kafka.producer.throughput.compressionType}")
+	private String compressionType;
+
+	@Value(value = "${kafka.producer.throughput.maxInFlight}")
+	private int maxInFlight;
+
+	// Particionador que detecta las claves calientes
+	@Value(value = "${kafka.producer.hotKeys.enabled}")
+	private boolean hotKeys;
+
+	@Value(value = "${kafka.producer.hotKeys.relaxedTopics}")
+	private String hotKeysRelaxedTopics;
+
+	@Value(value = "${kafka.producer.hotKeys.subPartitions}")
+	private int hotKeysSubPartitions;
+
+	@Value(value = "${kafka.producer.hotKeys.hotShare}")
+	private double hotKeysHotShare;
+
+	@Value(value = "${kafka.producer.hotKeys.decayMs}")
+	private long hotKeysDecayMs;
+
+	// Configuración comun a todos los productores. Con el perfil throughput los
+	// envios se agrupan en lotes grandes y comprimidos, y el productor es
+	// idempotente para que los reintentos no dupliquen ni desordenen mensajes
+	private Map<String, Object> producerProps() {
+		final Map<String, Object> configProps = new HashMap<>();
+		configProps.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapAddress);
+		if ("throughput".equals(profile)) {
+			configProps.put(ProducerConfig.LINGER_MS_CONFIG, lingerMs);
+			configProps.put(ProducerConfig.BATCH_SIZE_CONFIG, batchSize);
+			configProps.put(ProducerConfig.BUFFER_MEMORY_CONFIG, bufferMemory);
+			configProps.put(ProducerConfig.COMPRESSION_TYPE_CONFIG, compressionType);
+			configProps.put(ProducerConfig.ENABLE_IDEMPOTENCE_CONFIG, true);
+			configProps.put(ProducerConfig.ACKS_CONFIG, "all");
+			// Con idempotencia Kafka admite como mucho 5 peticiones en vuelo
+			configProps.put(ProducerConfig.MAX_IN_FLIGHT_REQUESTS_PER_CONNECTION, Math.min(maxInFlight, 5));
+		} else if (!"default".equals(profile))
+			throw new IllegalArgumentException("perfil de productor desconocido: " + profile);
+		return configProps;
+	}
+
+	// Publica en el registro de metricas las metricas del cliente de Kafka:
+	// tamaño de los lotes, latencia de las peticiones, tasa de errores...
+	private <K, V> ProducerFactory<K, V> withMetrics(DefaultKafkaProducerFactory<K, V> factory) {
+		factory.addListener(new MicrometerProducerListener<>(meterRegistry));
+		return factory;
+	}
+
 	// Configuración del Productor
 	@Bean
+	@Primary
 	public ProducerFactory<String, String> producerFactory() {
-		final Map<String, Object> configProps = new HashMap<>();
-		// Dirección
-		configProps.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapAddress);
+		final Map<String, Object> configProps = producerProps();
 		// Serializador para la clave y el valor
 		configProps.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class);
 		configProps.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, StringSerializer.class);
-		return new DefaultKafkaProducerFactory<>(configProps);
+		// Solo este productor reparte las claves calientes. El transaccional, el de
+		// greeting y el de los DLT mantienen todos los mensajes de una clave en su
+		// particion
+		if (hotKeys) {
+			// Kafka crea el particionador y le pasa esta misma configuración, incluido el
+			// registro de metricas. Las claves hotkey.* no son de Kafka, pero como las lee
+			// el particionador en configure cuentan como usadas, y Kafka no avisa de que
+			// no las conoce
+			configProps.put(ProducerConfig.PARTITIONER_CLASS_CONFIG, HotKeyPartitioner.class);
+			configProps.put(HotKeyPartitioner.RELAXED_TOPICS_CONFIG, hotKeysRelaxedTopics);
+			configProps.put(HotKeyPartitioner.SUBPARTITIONS_CONFIG, hotKeysSubPartitions);
+			configProps.put(HotKeyPartitioner.HOT_SHARE_CONFIG, hotKeysHotShare);
+			configProps.put(HotKeyPartitioner.DECAY_MS_CONFIG, hotKeysDecayMs);
+			configProps.put(HotKeyPartitioner.METER_REGISTRY_CONFIG, meterRegistry);
+		}
+		return withMetrics(new DefaultKafkaProducerFactory<>(configProps));
 	}
 
 	// Configura el template de Kafka
 	@Bean
+	@Primary
 	public KafkaTemplate<String, String> kafkaTemplate() {
 		// Configura el template usando la configuración definida en la bean anterior
 		ProducerFactory<String, String> factoria = producerFactory();
@@ -42,16 +138,48 @@ public class KafkaProducerConfig {
 		return new KafkaTemplate<String, String>(factoria);
 	}
 
+	// Productor transaccional para el pipeline consumir-transformar-producir. Los
+	// envios solo son visibles para los consumidores read_committed cuando se
+	// confirma la transacción, junto con los offsets de los mensajes consumidos
+	@Bean
+	public ProducerFactory<String, String> transactionalProducerFactory() {
+		final Map<String, Object> configProps = producerProps();
+		configProps.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class);
+		configProps.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, StringSerializer.class);
+		final DefaultKafkaProducerFactory<String, String> factory = new DefaultKafkaProducerFactory<>(configProps);
+		factory.setTransactionIdPrefix(transactionIdPrefix);
+		return withMetrics(factory);
+	}
+
+	// Template que envia dentro de la transacción del contenedor
+	@Bean
+	public KafkaTemplate<String, String> transactionalKafkaTemplate() {
+		ProducerFactory<String, String> factoria = transactionalProducerFactory();
+		if (factoria == null)
+			throw new RuntimeException("no se ha creado la factoria");
+		return new KafkaTemplate<String, String>(factoria);
+	}
+
+	// El contenedor abre una transacción con este gestor antes de entregar cada
+	// lote al listener, y la confirma con los offsets del lote
+	@Bean
+	public KafkaTransactionManager<String, String> kafkaTransactionManager() {
+		return new KafkaTransactionManager<>(transactionalProducerFactory());
+	}
+
 	// Configuración otro Productor, este usando un JSON en el formato usado en el
 	// valor
 	@Bean
 	public ProducerFactory<String, Greeting> greetingProducerFactory() {
-		final Map<String, Object> configProps = new HashMap<>();
-		configProps.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapAddress);
+		final Map<String, Object> configProps = producerProps();
 		configProps.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class);
-		// El valor no es un string en este productor, sino un JSON
-		configProps.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, JsonSerializer.class);
-		return new DefaultKafkaProducerFactory<String, Greeting>(configProps);
+		// El valor no es un string en este productor, sino un JSON, o el formato
+		// binario de GreetingSerializer
+		if ("binary".equals(greetingSerialization))
+			configProps.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, GreetingSerializer.class);
+		else
+			configProps.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, JsonSerializer.class);
+		return withMetrics(new DefaultKafkaProducerFactory<String, Greeting>(configProps));
 	}
 
 	// Configura otro template de Kafka
@@ -63,4 +191,17 @@ public class KafkaProducerConfig {
 		return new KafkaTemplate<String, Greeting>(factoria);
 	}
 
+	// Template para los topicos de reintentos y el DLT de greeting. Ademas de
+	// objetos Greeting tiene que poder publicar los bytes originales de los
+	// mensajes que no se pudieron deserializar
+	@Bean
+	public KafkaTemplate<String, Object> greetingDeadLetterKafkaTemplate() {
+		final Serializer<Greeting> valueSerializer = "binary".equals(greetingSerialization)
+				? new GreetingSerializer()
+				: new JsonSerializer<Greeting>();
+		final ProducerFactory<String, Object> factoria = withMetrics(new DefaultKafkaProducerFactory<String, Object>(
+				producerProps(), new StringSerializer(), new DeadLetterValueSerializer<>(valueSerializer)));
+		return new KafkaTemplate<String, Object>(factoria);
+	}
+
 }
@@ -8,6 +8,7 @@ import org.apache.kafka.clients.admin.NewTopic;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.kafka.config.TopicBuilder;
 import org.springframework.kafka.core.KafkaAdmin;
 
 //Con este helper podemos gestionar Kafka, por ejemplo, creando un topico
@@ -20,15 +21,61 @@ public class KafkaTopicConfig {
 	@Value(value = "${kafka.bootstrapAddress}")
 	private String bootstrapAddress;
 
+	@Value(value = "${partitioned.topic.name}")
+	private String partitionedTopicName;
+
+	@Value(value = "${partitioned.topic.partitions}")
+	private int partitionedTopicPartitions;
+
+	@Value(value = "${partitioned.store.changelog}")
+	private String changelogTopicName;
+
+	@Value(value = "${transformed.topic.name}")
+	private String transformedTopicName;
+
+	@Value(value = "${aggregation.topic.name}")
+	private String aggregationTopicName;
+
+	// Con kafka.fastStart los topicos no se crean al arrancar, sino despues, en
+	// segundo plano (ver DeferredContainerStarter)
+	@Value(value = "${kafka.fastStart}")
+	private boolean fastStart;
+
 	@Bean
 	public KafkaAdmin kafkaAdmin() {
 		final Map<String, Object> configs = new HashMap<>();
 		configs.put(AdminClientConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapAddress);
-		return new KafkaAdmin(configs);
+		final KafkaAdmin admin = new KafkaAdmin(configs);
+		admin.setAutoCreate(!fastStart);
+		return admin;
 	}
 
 	@Bean
 	public NewTopic topic1() {
-		return new NewTopic("partitioned", 5, (short) 1);
+		return new NewTopic(partitionedTopicName, partitionedTopicPartitions, (short) 1);
+	}
+
+	// Changelog del almacen de estado de partitionsAll. Tiene las mismas
+	// particiones que el topico de origen, y es compactado: Kafka conserva el
+	// ultimo valor de cada clave
+	@Bean
+	public NewTopic changelogTopic() {
+		return TopicBuilder.name(changelogTopicName)
+				.partitions(partitionedTopicPartitions)
+				.replicas(1)
+				.compact()
+				.build();
+	}
+
+	// Salida del pipeline transaccional
+	@Bean
+	public NewTopic transformedTopic() {
+		return new NewTopic(transformedTopicName, partitionedTopicPartitions, (short) 1);
+	}
+
+	// Salida de la agregación por ventanas
+	@Bean
+	public NewTopic aggregationTopic() {
+		return new NewTopic(aggregationTopicName, partitionedTopicPartitions, (short) 1);
 	}
 }
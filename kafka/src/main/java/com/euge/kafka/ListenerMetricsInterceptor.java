@@ -0,0 +1,93 @@
+package com.euge.kafka;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.springframework.kafka.listener.BatchInterceptor;
+import org.springframework.kafka.listener.ConsumerAwareRecordInterceptor;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+// Metricas de un listener: registros procesados, errores, tiempo de proceso y
+// latencia extremo a extremo (desde el timestamp del registro). Los medidores se
+// registran una vez al crear el interceptor; por registro solo se actualizan,
+// sin reservar memoria. Los percentiles los calcula Micrometer con HdrHistogram
+public class ListenerMetricsInterceptor<K, V> implements ConsumerAwareRecordInterceptor<K, V>, BatchInterceptor<K, V> {
+
+	private static final double[] PERCENTILES = { 0.5, 0.95, 0.99, 0.999 };
+
+	private final Counter records;
+
+	private final Counter errors;
+
+	private final Timer processing;
+
+	private final Timer endToEnd;
+
+	// Instante en que empezo a procesarse el registro o lote en curso en cada hilo
+	private final ThreadLocal<long[]> start = ThreadLocal.withInitial(() -> new long[1]);
+
+	public ListenerMetricsInterceptor(MeterRegistry registry, String listener) {
+		this.records = Counter.builder("kafka.listener.records").tag("listener", listener)
+				.description("Registros entregados al listener").register(registry);
+		this.errors = Counter.builder("kafka.listener.errors").tag("listener", listener)
+				.description("Registros o lotes en los que el listener lanzo una excepción").register(registry);
+		this.processing = Timer.builder("kafka.listener.processing").tag("listener", listener)
+				.description("Tiempo de proceso del listener").publishPercentiles(PERCENTILES).register(registry);
+		this.endToEnd = Timer.builder("kafka.listener.e2e.latency").tag("listener", listener)
+				.description("Tiempo desde el timestamp del registro hasta su entrega al listener")
+				.publishPercentiles(PERCENTILES).register(registry);
+	}
+
+	@Override
+	public ConsumerRecord<K, V> intercept(ConsumerRecord<K, V> record, Consumer<K, V> consumer) {
+		received(record);
+		start.get()[0] = System.nanoTime();
+		return record;
+	}
+
+	@Override
+	public void success(ConsumerRecord<K, V> record, Consumer<K, V> consumer) {
+		processed();
+	}
+
+	@Override
+	public void failure(ConsumerRecord<K, V> record, Exception exception, Consumer<K, V> consumer) {
+		processed();
+		errors.increment();
+	}
+
+	@Override
+	public ConsumerRecords<K, V> intercept(ConsumerRecords<K, V> batch, Consumer<K, V> consumer) {
+		for (final ConsumerRecord<K, V> record : batch)
+			received(record);
+		start.get()[0] = System.nanoTime();
+		return batch;
+	}
+
+	@Override
+	public void success(ConsumerRecords<K, V> batch, Consumer<K, V> consumer) {
+		processed();
+	}
+
+	@Override
+	public void failure(ConsumerRecords<K, V> batch, Exception exception, Consumer<K, V> consumer) {
+		processed();
+		errors.increment();
+	}
+
+	private void received(ConsumerRecord<K, V> record) {
+		records.increment();
+		final long latency = System.currentTimeMillis() - record.timestamp();
+		if (latency >= 0)
+			endToEnd.record(latency, TimeUnit.MILLISECONDS);
+	}
+
+	private void processed() {
+		processing.record(System.nanoTime() - start.get()[0], TimeUnit.NANOSECONDS);
+	}
+}
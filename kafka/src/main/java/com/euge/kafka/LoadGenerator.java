@@ -0,0 +1,335 @@
+package com.euge.kafka;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.kafka.clients.admin.AdminClient;
+import org.apache.kafka.clients.admin.ListOffsetsResult.ListOffsetsResultInfo;
+import org.apache.kafka.clients.admin.OffsetSpec;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.kafka.core.KafkaAdmin;
+
+import com.euge.kafka.KafkaApplication.MessageProducer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+// Generador de carga. Envia mensajes con MessageProducer.sendAsync durante
+// loadgen.durationSeconds, desde loadgen.threads hilos y a un ritmo total de
+// loadgen.rate mensajes por segundo (0 sin limite). Cada
+// loadgen.reportIntervalMs registra el ritmo conseguido, los percentiles de
+// latencia del envio y el lag del grupo loadgen.lagGroup en el topico, y al
+// terminar escribe el resumen en JSON en loadgen.output.
+// La latencia se mide desde el instante en que tocaba enviar el mensaje segun el
+// ritmo, no desde que se envio: si el productor se atasca, los mensajes que
+// esperan tambien cuentan
+public class LoadGenerator {
+
+	private static final Logger LOG = LoggerFactory.getLogger(LoadGenerator.class);
+
+	private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+	@Autowired
+	private MessageProducer producer;
+
+	// Para consultar el lag del grupo
+	@Autowired
+	private KafkaAdmin kafkaAdmin;
+
+	@Value(value = "${loadgen.topic}")
+	private String topic;
+
+	@Value(value = "${loadgen.rate}")
+	private int rate;
+
+	@Value(value = "${loadgen.threads}")
+	private int threads;
+
+	@Value(value = "${loadgen.durationSeconds}")
+	private long durationSeconds;
+
+	// Tamaño del valor: fixed (size.bytes), uniform (entre size.min y size.max) o
+	// exponential (media size.bytes, entre size.min y size.max)
+	@Value(value = "${loadgen.size.distribution}")
+	private String sizeDistribution;
+
+	@Value(value = "${loadgen.size.bytes}")
+	private int sizeBytes;
+
+	@Value(value = "${loadgen.size.min}")
+	private int sizeMin;
+
+	@Value(value = "${loadgen.size.max}")
+	private int sizeMax;
+
+	// Numero de claves distintas (0 para enviar sin clave) y sesgo: con 0 todas las
+	// claves son igual de frecuentes; con s > 0 siguen una distribución de Zipf
+	@Value(value = "${loadgen.keys}")
+	private int keyCount;
+
+	@Value(value = "${loadgen.keySkew}")
+	private double keySkew;
+
+	@Value(value = "${loadgen.reportIntervalMs}")
+	private long reportIntervalMs;
+
+	@Value(value = "${loadgen.lagGroup}")
+	private String lagGroup;
+
+	@Value(value = "${loadgen.output}")
+	private String output;
+
+	private final Recorder latency = new Recorder(3);
+
+	private final LongAdder sent = new LongAdder();
+
+	private final LongAdder errors = new LongAdder();
+
+	private String[] keys;
+
+	// Probabilidad acumulada de cada clave con keySkew > 0
+	private double[] keyCdf;
+
+	private String payload;
+
+	public Map<String, Object> run() throws InterruptedException, IOException {
+		prepare();
+		LOG.info("Generando carga en {}: {} mensajes/s, {} hilos, {} s", topic, rate == 0 ? "sin limite" : rate,
+				threads, durationSeconds);
+		final long start = System.nanoTime();
+		final long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+		final ExecutorService workers = Executors.newFixedThreadPool(threads);
+		for (int i = 0; i < threads; i++)
+			workers.execute(() -> produce(start, end));
+		workers.shutdown();
+
+		final List<Map<String, Object>> intervals = new ArrayList<>();
+		final Histogram total = new Histogram(3);
+		Histogram interval = null;
+		long lastSent = 0;
+		long last = start;
+		final AdminClient admin = AdminClient.create(kafkaAdmin.getConfigurationProperties());
+		try {
+			while (!workers.awaitTermination(reportIntervalMs, TimeUnit.MILLISECONDS)) {
+				final long now = System.nanoTime();
+				interval = latency.getIntervalHistogram(interval);
+				total.add(interval);
+				final long count = sent.sum();
+				intervals.add(report(now - start, count - lastSent, now - last, interval, admin));
+				lastSent = count;
+				last = now;
+			}
+			// Espera a que se confirmen los ultimos envios
+			producer.flush();
+			interval = latency.getIntervalHistogram(interval);
+			total.add(interval);
+			final long now = System.nanoTime();
+			intervals.add(report(now - start, sent.sum() - lastSent, now - last, interval, admin));
+		} finally {
+			admin.close(Duration.ZERO);
+		}
+
+		final long elapsed = System.nanoTime() - start;
+		final double throughput = sent.sum() * 1e9 / elapsed;
+		final Map<String, Object> summary = new LinkedHashMap<>();
+		summary.put("settings", settings());
+		summary.put("durationMs", TimeUnit.NANOSECONDS.toMillis(elapsed));
+		summary.put("sent", sent.sum());
+		summary.put("errors", errors.sum());
+		summary.put("throughput", throughput);
+		summary.put("latencyMs", percentiles(total));
+		summary.put("intervals", intervals);
+		final File file = new File(output);
+		if (file.getParentFile() != null)
+			file.getParentFile().mkdirs();
+		new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(file, summary);
+		LOG.info("Enviados {} mensajes ({} errores), {} mensajes/s, latencia {} ms. Resumen en {}", sent.sum(),
+				errors.sum(), Math.round(throughput), summary.get("latencyMs"), file.getAbsolutePath());
+		return summary;
+	}
+
+	private void prepare() {
+		if (threads < 1 || durationSeconds < 1 || reportIntervalMs < 1)
+			throw new IllegalArgumentException("loadgen.threads, loadgen.durationSeconds y loadgen.reportIntervalMs tienen que ser positivos");
+		if (sizeMin < 0 || sizeMin > sizeMax)
+			throw new IllegalArgumentException("loadgen.size.min tiene que estar entre 0 y loadgen.size.max");
+		// Las claves y el valor se crean una vez; cada mensaje usa un prefijo del valor
+		keys = new String[keyCount];
+		for (int i = 0; i < keyCount; i++)
+			keys[i] = "key-" + i;
+		if (keySkew > 0 && keyCount > 0) {
+			keyCdf = new double[keyCount];
+			double sum = 0;
+			for (int i = 0; i < keyCount; i++)
+				keyCdf[i] = sum += 1 / Math.pow(i + 1, keySkew);
+			for (int i = 0; i < keyCount; i++)
+				keyCdf[i] /= sum;
+		}
+		final char[] chars = new char[Math.max(sizeMax, sizeBytes)];
+		final ThreadLocalRandom random = ThreadLocalRandom.current();
+		for (int i = 0; i < chars.length; i++)
+			chars[i] = (char) ('a' + random.nextInt(26));
+		payload = new String(chars);
+	}
+
+	// Bucle de un hilo. Con rate > 0 cada hilo envia rate / threads mensajes por
+	// segundo, en instantes fijados de antemano
+	private void produce(long start, long end) {
+		final long periodNanos = rate > 0 ? TimeUnit.SECONDS.toNanos(threads) / rate : 0;
+		long next = start;
+		while (true) {
+			long now = System.nanoTime();
+			if (periodNanos > 0) {
+				while (now < next) {
+					LockSupport.parkNanos(next - now);
+					now = System.nanoTime();
+				}
+			} else {
+				next = now;
+			}
+			if (next >= end)
+				return;
+			final long intended = next;
+			try {
+				producer.sendAsync(new ProducerRecord<>(topic, nextKey(), nextValue())).whenComplete((result, ex) -> {
+					if (ex == null) {
+						sent.increment();
+						latency.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - intended));
+					} else {
+						errors.increment();
+					}
+				});
+			} catch (final RuntimeException e) {
+				errors.increment();
+			}
+			if (Thread.currentThread().isInterrupted())
+				return;
+			next += periodNanos;
+		}
+	}
+
+	private String nextKey() {
+		if (keyCount == 0)
+			return null;
+		final ThreadLocalRandom random = ThreadLocalRandom.current();
+		if (keyCdf == null)
+			return keys[random.nextInt(keyCount)];
+		int i = Arrays.binarySearch(keyCdf, random.nextDouble());
+		if (i < 0)
+			i = -i - 1;
+		return keys[Math.min(i, keyCount - 1)];
+	}
+
+	private String nextValue() {
+		final ThreadLocalRandom random = ThreadLocalRandom.current();
+		final int size;
+		switch (sizeDistribution) {
+		case "fixed":
+			size = sizeBytes;
+			break;
+		case "uniform":
+			size = random.nextInt(sizeMin, sizeMax + 1);
+			break;
+		case "exponential":
+			size = (int) Math.max(sizeMin, Math.min(sizeMax, -sizeBytes * Math.log(1 - random.nextDouble())));
+			break;
+		default:
+			throw new IllegalArgumentException("Distribución de tamaños desconocida: " + sizeDistribution);
+		}
+		return payload.substring(0, size);
+	}
+
+	private Map<String, Object> report(long elapsedNanos, long count, long periodNanos, Histogram interval,
+			AdminClient admin) {
+		final double throughput = periodNanos == 0 ? 0 : count * 1e9 / periodNanos;
+		final Map<String, Object> report = new LinkedHashMap<>();
+		report.put("elapsedMs", TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+		report.put("sent", count);
+		report.put("throughput", throughput);
+		report.put("latencyMs", percentiles(interval));
+		final long[] lag = lag(admin);
+		report.put("lag", lag[0]);
+		report.put("maxPartitionLag", lag[1]);
+		LOG.info("{} ms: {} mensajes/s, p99 {} ms, lag {} (max por particion {})", report.get("elapsedMs"),
+				Math.round(throughput),
+				interval.getValueAtPercentile(99) / 1000.0, lag[0], lag[1]);
+		return report;
+	}
+
+	private static Map<String, Object> percentiles(Histogram histogram) {
+		final Map<String, Object> result = new LinkedHashMap<>();
+		for (final double p : PERCENTILES)
+			result.put("p" + (p == Math.rint(p) ? Long.toString((long) p) : Double.toString(p)),
+					histogram.getValueAtPercentile(p) / 1000.0);
+		result.put("max", histogram.getMaxValue() / 1000.0);
+		return result;
+	}
+
+	// Lag total y maximo por particion de lagGroup en el topico: mensajes entre el
+	// offset confirmado por el grupo y el final de la particion. -1 si no se puede
+	// consultar
+	private long[] lag(AdminClient admin) {
+		try {
+			final Map<TopicPartition, OffsetAndMetadata> committed = admin.listConsumerGroupOffsets(lagGroup)
+					.partitionsToOffsetAndMetadata().get(reportIntervalMs, TimeUnit.MILLISECONDS);
+			final Map<TopicPartition, OffsetSpec> latest = new HashMap<>();
+			for (final Map.Entry<TopicPartition, OffsetAndMetadata> offset : committed.entrySet())
+				if (offset.getKey().topic().equals(topic) && offset.getValue() != null)
+					latest.put(offset.getKey(), OffsetSpec.latest());
+			if (latest.isEmpty())
+				return new long[] { -1, -1 };
+			final Map<TopicPartition, ListOffsetsResultInfo> ends = admin.listOffsets(latest).all()
+					.get(reportIntervalMs, TimeUnit.MILLISECONDS);
+			long total = 0;
+			long max = 0;
+			for (final Map.Entry<TopicPartition, ListOffsetsResultInfo> end : ends.entrySet()) {
+				final long lag = Math.max(0, end.getValue().offset() - committed.get(end.getKey()).offset());
+				total += lag;
+				max = Math.max(max, lag);
+			}
+			return new long[] { total, max };
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (final ExecutionException | TimeoutException e) {
+			// Sin dato en este intervalo
+		}
+		return new long[] { -1, -1 };
+	}
+
+	private Map<String, Object> settings() {
+		final Map<String, Object> settings = new LinkedHashMap<>();
+		settings.put("topic", topic);
+		settings.put("rate", rate);
+		settings.put("threads", threads);
+		settings.put("durationSeconds", durationSeconds);
+		settings.put("sizeDistribution", sizeDistribution);
+		settings.put("sizeBytes", sizeBytes);
+		settings.put("sizeMin", sizeMin);
+		settings.put("sizeMax", sizeMax);
+		settings.put("keys", keyCount);
+		settings.put("keySkew", keySkew);
+		settings.put("lagGroup", lagGroup);
+		return settings;
+	}
+}
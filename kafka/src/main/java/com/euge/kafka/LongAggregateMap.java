@@ -0,0 +1,116 @@
+package com.euge.kafka;
+
+import java.util.Arrays;
+
+// Mapa clave -> (numero de registros, suma) con direccionamiento abierto sobre
+// arrays de primitivos. Añadir un valor no reserva memoria (salvo al crecer), y
+// clear() conserva los arrays para reutilizar el mapa en la siguiente ventana
+public final class LongAggregateMap {
+
+	@FunctionalInterface
+	public interface Visitor {
+		void accept(String key, long count, long sum);
+	}
+
+	private String[] keys;
+
+	private long[] counts;
+
+	private long[] sums;
+
+	private int size;
+
+	public LongAggregateMap(int expectedKeys) {
+		int capacity = 16;
+		while (capacity < expectedKeys * 2)
+			capacity <<= 1;
+		allocate(capacity);
+	}
+
+	// Suma value al agregado de la clave
+	public void add(String key, long value) {
+		final int mask = keys.length - 1;
+		int i = index(key, mask);
+		while (keys[i] != null) {
+			if (keys[i].equals(key)) {
+				counts[i]++;
+				sums[i] += value;
+				return;
+			}
+			i = (i + 1) & mask;
+		}
+		keys[i] = key;
+		counts[i] = 1;
+		sums[i] = value;
+		// Factor de carga maximo 0.5
+		if (++size * 2 > keys.length)
+			resize();
+	}
+
+	public long count(String key) {
+		final int i = find(key);
+		return i < 0 ? 0 : counts[i];
+	}
+
+	public long sum(String key) {
+		final int i = find(key);
+		return i < 0 ? 0 : sums[i];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public void forEach(Visitor visitor) {
+		for (int i = 0; i < keys.length; i++)
+			if (keys[i] != null)
+				visitor.accept(keys[i], counts[i], sums[i]);
+	}
+
+	public void clear() {
+		if (size > 0) {
+			Arrays.fill(keys, null);
+			size = 0;
+		}
+	}
+
+	private int find(String key) {
+		final int mask = keys.length - 1;
+		int i = index(key, mask);
+		while (keys[i] != null) {
+			if (keys[i].equals(key))
+				return i;
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	private static int index(String key, int mask) {
+		final int h = key.hashCode() * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	private void allocate(int capacity) {
+		keys = new String[capacity];
+		counts = new long[capacity];
+		sums = new long[capacity];
+	}
+
+	private void resize() {
+		final String[] oldKeys = keys;
+		final long[] oldCounts = counts;
+		final long[] oldSums = sums;
+		allocate(oldKeys.length * 2);
+		final int mask = keys.length - 1;
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldKeys[j] == null)
+				continue;
+			int i = index(oldKeys[j], mask);
+			while (keys[i] != null)
+				i = (i + 1) & mask;
+			keys[i] = oldKeys[j];
+			counts[i] = oldCounts[j];
+			sums[i] = oldSums[j];
+		}
+	}
+}
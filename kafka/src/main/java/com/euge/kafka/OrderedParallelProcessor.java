@@ -0,0 +1,223 @@
+package com.euge.kafka;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.kafka.listener.ConsumerRecordRecoverer;
+import org.springframework.kafka.support.Acknowledgment;
+import org.springframework.util.backoff.BackOff;
+import org.springframework.util.backoff.BackOffExecution;
+import org.springframework.util.backoff.FixedBackOff;
+
+// Reparte los registros que recibe un consumidor entre varios hilos. Todos los
+// registros con la misma clave van al mismo hilo, asi que se procesan en el
+// orden en que se recibieron. El offset de un registro solo se confirma cuando
+// han terminado todos los registros anteriores de su particion.
+// Si el handler falla se reintenta segun backOff, en el mismo hilo, y despues
+// se entrega el registro al recoverer (por ejemplo un DeadLetterPublishingRecoverer),
+// como hace el error handler del contenedor con los listener normales.
+// El contenedor tiene que usar AckMode.MANUAL y este procesador como
+// ConsumerRebalanceListener
+public class OrderedParallelProcessor<K, V> implements ConsumerRebalanceListener, AutoCloseable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(OrderedParallelProcessor.class);
+
+	// Un executor de un solo hilo por "carril"; cada clave siempre usa el mismo
+	private final ExecutorService[] lanes;
+
+	// Limita el numero de registros recibidos y aun sin procesar
+	private final Semaphore inFlight;
+
+	private final int maxInFlight;
+
+	private final Map<TopicPartition, PartitionTracker> trackers = new ConcurrentHashMap<>();
+
+	private final BackOff backOff;
+
+	private final ConsumerRecordRecoverer recoverer;
+
+	// Sin reintentos; los registros que fallan solo se registran en el log
+	public OrderedParallelProcessor(int workers, int maxInFlight) {
+		this(workers, maxInFlight, null);
+	}
+
+	// Con threadFactory se pueden usar, por ejemplo, hilos virtuales para los
+	// carriles
+	public OrderedParallelProcessor(int workers, int maxInFlight, ThreadFactory threadFactory) {
+		this(workers, maxInFlight, threadFactory, new FixedBackOff(0, 0),
+				(record, e) -> LOG.error("Error procesando {}-{}@{}", record.topic(), record.partition(),
+						record.offset(), e));
+	}
+
+	public OrderedParallelProcessor(int workers, int maxInFlight, ThreadFactory threadFactory, BackOff backOff,
+			ConsumerRecordRecoverer recoverer) {
+		this.lanes = new ExecutorService[workers];
+		for (int i = 0; i < workers; i++) {
+			final String name = "ordered-" + i;
+			lanes[i] = Executors.newSingleThreadExecutor(threadFactory != null ? threadFactory : r -> new Thread(r, name));
+		}
+		this.maxInFlight = maxInFlight;
+		this.inFlight = new Semaphore(maxInFlight);
+		this.backOff = backOff;
+		this.recoverer = recoverer;
+	}
+
+	// Encola el registro en el carril de su clave. Se llama desde el hilo del
+	// consumidor, que se bloquea si ya hay maxInFlight registros pendientes
+	public void submit(ConsumerRecord<K, V> record, Acknowledgment ack, Consumer<ConsumerRecord<K, V>> handler) {
+		try {
+			inFlight.acquire();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrumpido esperando hueco para procesar", e);
+		}
+		final PartitionTracker tracker = trackers.computeIfAbsent(
+				new TopicPartition(record.topic(), record.partition()), tp -> new PartitionTracker());
+		final Pending pending = tracker.add(ack);
+		lanes[lane(record)].execute(() -> {
+			try {
+				process(record, handler);
+			} finally {
+				tracker.complete(pending);
+				inFlight.release();
+			}
+		});
+	}
+
+	// Ejecuta el handler con los reintentos de backOff. Si sigue fallando el
+	// registro pasa al recoverer y se confirma, de modo que la particion avanza. Si
+	// tambien falla el recoverer el registro se pierde: solo queda en el log
+	private void process(ConsumerRecord<K, V> record, Consumer<ConsumerRecord<K, V>> handler) {
+		final BackOffExecution execution = backOff.start();
+		while (true) {
+			try {
+				handler.accept(record);
+				return;
+			} catch (final RuntimeException e) {
+				final long wait = execution.nextBackOff();
+				if (wait == BackOffExecution.STOP || !sleep(wait)) {
+					recover(record, e);
+					return;
+				}
+			}
+		}
+	}
+
+	private void recover(ConsumerRecord<K, V> record, RuntimeException e) {
+		try {
+			recoverer.accept(record, e);
+		} catch (final RuntimeException recoverException) {
+			LOG.error("No se pudo recuperar {}-{}@{}", record.topic(), record.partition(), record.offset(),
+					recoverException);
+		}
+	}
+
+	private static boolean sleep(long ms) {
+		try {
+			Thread.sleep(ms);
+			return true;
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	// Registros recibidos y aun sin procesar
+	public int inFlight() {
+		return maxInFlight - inFlight.availablePermits();
+	}
+
+	private int lane(ConsumerRecord<K, V> record) {
+		final Object key = record.key();
+		// Los registros sin clave no tienen orden que respetar
+		final int hash = key == null ? Long.hashCode(record.offset()) : key.hashCode();
+		return Math.floorMod(hash ^ (hash >>> 16), lanes.length);
+	}
+
+	@Override
+	public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
+		// Los trackers se crean al recibir el primer registro de cada particion
+	}
+
+	// Las particiones que se pierden dejan de confirmar offsets; los registros
+	// pendientes se volveran a entregar al nuevo dueño de la particion
+	@Override
+	public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+		for (final TopicPartition tp : partitions) {
+			final PartitionTracker tracker = trackers.remove(tp);
+			if (tracker != null)
+				tracker.revoke();
+		}
+	}
+
+	// Espera a que terminen los registros encolados. Si se interrumpe la espera se
+	// cancelan los que quedan y se mantiene la interrupción del hilo
+	@Override
+	public void close() {
+		for (final ExecutorService lane : lanes)
+			lane.shutdown();
+		try {
+			for (final ExecutorService lane : lanes)
+				lane.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (final InterruptedException e) {
+			for (final ExecutorService lane : lanes)
+				lane.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static final class Pending {
+
+		private final Acknowledgment ack;
+
+		private boolean done;
+
+		Pending(Acknowledgment ack) {
+			this.ack = ack;
+		}
+	}
+
+	// Registros pendientes de una particion, en orden de offset
+	private static final class PartitionTracker {
+
+		private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+
+		private boolean revoked;
+
+		synchronized Pending add(Acknowledgment ack) {
+			final Pending p = new Pending(ack);
+			pending.addLast(p);
+			return p;
+		}
+
+		// Confirma el ultimo registro de la secuencia de registros terminados al
+		// principio de la cola. El ack se hace dentro del lock para que los offsets
+		// confirmados nunca retrocedan
+		synchronized void complete(Pending p) {
+			p.done = true;
+			Pending last = null;
+			while (!pending.isEmpty() && pending.peekFirst().done)
+				last = pending.pollFirst();
+			if (last != null && !revoked)
+				last.ack.acknowledge();
+		}
+
+		synchronized void revoke() {
+			revoked = true;
+			pending.clear();
+		}
+	}
+}
@@ -0,0 +1,235 @@
+package com.euge.kafka;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.InterruptException;
+import org.apache.kafka.common.header.Header;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.kafka.core.ConsumerFactory;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.listener.ConsumerAwareRebalanceListener;
+import org.springframework.kafka.listener.MessageListenerContainer;
+
+// Almacen clave-valor local para listener con estado. El estado esta dividido
+// por particion del topico de origen: cada consumidor solo tiene en memoria el
+// estado de las particiones que tiene asignadas.
+// Cada cambio se publica en un topico changelog compactado, en la misma
+// particion, con el offset del registro de origen que lo produjo en la cabecera
+// source-offset. El changelog y el offset confirmado del grupo no se escriben
+// en una transacción: al recuperar una particion se vuelve a leer el origen
+// desde el registro siguiente al ultimo que llego al changelog, y los registros
+// ya aplicados se ignoran.
+// Cuando se asigna una particion (al arrancar o en un rebalanceo) el contenedor
+// la pausa y su estado se recarga en segundo plano leyendo su particion del
+// changelog; cuando se pierde, se esperan los envios pendientes al changelog y
+// se descarta.
+// El contenedor tiene que usar este almacen como ConsumerRebalanceListener,
+// registrarlo con bind(), y llamar a resumeIfRestored() en el hilo consumidor
+// (con los ListenerContainerPartitionIdleEvent de sus particiones)
+public class PartitionedStateStore implements ConsumerAwareRebalanceListener {
+
+	private static final Logger LOG = LoggerFactory.getLogger(PartitionedStateStore.class);
+
+	// Cabecera del changelog con el offset del registro de origen
+	static final String SOURCE_OFFSET = "source-offset";
+
+	// Numera los consumidores de restauración para que cada uno tenga su client.id
+	private static final AtomicInteger RESTORES = new AtomicInteger();
+
+	private final String changelogTopic;
+
+	private final KafkaTemplate<String, String> template;
+
+	private final ConsumerFactory<String, String> consumerFactory;
+
+	// Espera entre reintentos si falla la restauración de una particion
+	private final long retryMs;
+
+	private final Map<Integer, PartitionState> partitions = new ConcurrentHashMap<>();
+
+	// Las restauraciones se hacen fuera del hilo consumidor, de una en una
+	private final ScheduledExecutorService restorer = Executors.newSingleThreadScheduledExecutor(r -> {
+		final Thread thread = new Thread(r, "state-restore");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private volatile MessageListenerContainer container;
+
+	// Estado de una particion. values y applied solo los modifica el hilo de
+	// restauración hasta que restored es true, y despues el hilo consumidor
+	private static class PartitionState {
+
+		private final Map<String, String> values = new ConcurrentHashMap<>();
+
+		// Offset del ultimo registro de origen aplicado, -1 si ninguno
+		private volatile long applied = -1;
+
+		private volatile boolean restored;
+
+		private volatile boolean resumed;
+
+		private volatile boolean revoked;
+	}
+
+	public PartitionedStateStore(String changelogTopic, KafkaTemplate<String, String> template,
+			ConsumerFactory<String, String> consumerFactory, long retryMs) {
+		this.changelogTopic = changelogTopic;
+		this.template = template;
+		this.consumerFactory = consumerFactory;
+		this.retryMs = retryMs;
+	}
+
+	// Contenedor que consume el topico de origen; el almacen pausa en el las
+	// particiones mientras las restaura
+	public void bind(MessageListenerContainer container) {
+		this.container = container;
+	}
+
+	public String get(int partition, String key) {
+		return state(partition).values.get(key);
+	}
+
+	// Guarda el valor producido por el registro de origen con ese offset. Devuelve
+	// false, sin cambiar nada, si ese registro ya se habia aplicado
+	public boolean put(int partition, long offset, String key, String value) {
+		final PartitionState state = state(partition);
+		if (offset <= state.applied)
+			return false;
+		if (value == null)
+			state.values.remove(key);
+		else
+			state.values.put(key, value);
+		state.applied = offset;
+		final ProducerRecord<String, String> change = new ProducerRecord<>(changelogTopic, partition, key, value);
+		change.headers().add(SOURCE_OFFSET, Long.toString(offset).getBytes(StandardCharsets.UTF_8));
+		template.send(change);
+		return true;
+	}
+
+	// Borra la clave; en el changelog se publica un tombstone
+	public boolean delete(int partition, long offset, String key) {
+		return put(partition, offset, key, null);
+	}
+
+	// Suma delta al contador de la clave y devuelve el nuevo valor. Si el registro
+	// ya se habia aplicado devuelve el valor actual
+	public long increment(int partition, long offset, String key, long delta) {
+		final String current = get(partition, key);
+		final long value = (current == null ? 0 : Long.parseLong(current)) + delta;
+		return put(partition, offset, key, Long.toString(value)) ? value : value - delta;
+	}
+
+	private PartitionState state(int partition) {
+		final PartitionState state = partitions.get(partition);
+		if (state == null || !state.restored)
+			throw new IllegalStateException(
+					"La particion " + partition + " no esta asignada a este consumidor o aun no se ha restaurado");
+		return state;
+	}
+
+	// La particion queda pausada hasta que termina su restauración. No basta con
+	// consumer.pause(): el contenedor reanuda las particiones pausadas que no se
+	// le han pedido pausar
+	@Override
+	public void onPartitionsAssigned(Consumer<?, ?> consumer, Collection<TopicPartition> assigned) {
+		if (assigned.isEmpty())
+			return;
+		consumer.pause(assigned);
+		for (final TopicPartition tp : assigned) {
+			container.pausePartition(tp);
+			final PartitionState state = new PartitionState();
+			partitions.put(tp.partition(), state);
+			restorer.execute(() -> restore(tp.partition(), state));
+		}
+	}
+
+	// Antes de soltar las particiones (y de confirmar sus offsets) se envian los
+	// cambios que el productor aun tiene en sus lotes, para que el nuevo dueño los
+	// lea al restaurar
+	@Override
+	public void onPartitionsRevoked(Collection<TopicPartition> revoked) {
+		if (!revoked.isEmpty())
+			template.flush();
+		for (final TopicPartition tp : revoked) {
+			final PartitionState state = partitions.remove(tp.partition());
+			if (state != null)
+				state.revoked = true;
+			container.resumePartition(tp);
+		}
+	}
+
+	// Reanuda la particion si ya esta restaurada, colocando el consumidor en el
+	// registro siguiente al ultimo aplicado. Se llama en el hilo consumidor
+	public void resumeIfRestored(TopicPartition tp, Consumer<?, ?> consumer) {
+		final PartitionState state = partitions.get(tp.partition());
+		if (state == null || !state.restored || state.resumed)
+			return;
+		state.resumed = true;
+		if (state.applied >= 0)
+			consumer.seek(tp, state.applied + 1);
+		container.resumePartition(tp);
+	}
+
+	// Carga el estado de la particion leyendo su changelog desde el principio
+	// hasta el final en el momento de la asignación. Si falla se reintenta
+	private void restore(int partition, PartitionState state) {
+		final TopicPartition tp = new TopicPartition(changelogTopic, partition);
+		final Properties props = new Properties();
+		props.setProperty(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "false");
+		props.setProperty(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, "10000");
+		final long start = System.currentTimeMillis();
+		try (Consumer<String, String> consumer = consumerFactory.createConsumer(null,
+				"restore-" + changelogTopic + "-" + partition, "-" + RESTORES.incrementAndGet(), props)) {
+			consumer.assign(Collections.singleton(tp));
+			consumer.seekToBeginning(Collections.singleton(tp));
+			final long end = consumer.endOffsets(Collections.singleton(tp)).get(tp);
+			while (consumer.position(tp) < end) {
+				if (state.revoked)
+					return;
+				for (final ConsumerRecord<String, String> record : consumer.poll(Duration.ofMillis(500))) {
+					if (record.value() == null)
+						state.values.remove(record.key());
+					else
+						state.values.put(record.key(), record.value());
+					final Header offset = record.headers().lastHeader(SOURCE_OFFSET);
+					if (offset != null)
+						state.applied = Math.max(state.applied,
+								Long.parseLong(new String(offset.value(), StandardCharsets.UTF_8)));
+				}
+			}
+		} catch (InterruptException e) {
+			return;
+		} catch (RuntimeException e) {
+			LOG.error("No se ha podido restaurar la particion {} de {}", partition, changelogTopic, e);
+			state.values.clear();
+			state.applied = -1;
+			if (!state.revoked && !restorer.isShutdown())
+				restorer.schedule(() -> restore(partition, state), retryMs, TimeUnit.MILLISECONDS);
+			return;
+		}
+		state.restored = true;
+		LOG.info("Restaurada la particion {} de {}: {} claves en {} ms", partition, changelogTopic,
+				state.values.size(), System.currentTimeMillis() - start);
+	}
+
+	public void close() {
+		restorer.shutdownNow();
+	}
+}
@@ -0,0 +1,148 @@
+package com.euge.kafka;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.ApplicationContextAware;
+import org.springframework.context.ApplicationListener;
+import org.springframework.kafka.listener.BatchInterceptor;
+import org.springframework.kafka.listener.ConsumerAwareRecordInterceptor;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+
+// Tiempos de arranque, medidos desde que arranco la JVM: hasta que la
+// aplicación esta lista y hasta que un listener recibe el primer registro; y la
+// memoria residente (RSS) del proceso en ese momento. Se registran en el log y
+// como metricas (app.startup.ready, app.startup.first.record), y si se indica un
+// fichero, se escriben en JSON. Con exitAfterFirstRecord la aplicación termina
+// tras el primer registro, para medir arranques en frio uno detras de otro
+public class StartupMetrics implements ApplicationListener<ApplicationReadyEvent>, ApplicationContextAware {
+
+	private static final Logger LOG = LoggerFactory.getLogger(StartupMetrics.class);
+
+	private final long jvmStart = ManagementFactory.getRuntimeMXBean().getStartTime();
+
+	private final String output;
+
+	private final boolean exitAfterFirstRecord;
+
+	private volatile long readyMs = -1;
+
+	private volatile long firstRecordMs = -1;
+
+	private ApplicationContext context;
+
+	public StartupMetrics(MeterRegistry registry, String output, boolean exitAfterFirstRecord) {
+		this.output = output;
+		this.exitAfterFirstRecord = exitAfterFirstRecord;
+		TimeGauge.builder("app.startup.ready", this, TimeUnit.MILLISECONDS, m -> m.readyMs)
+				.description("Tiempo desde el arranque de la JVM hasta que la aplicación esta lista")
+				.register(registry);
+		TimeGauge.builder("app.startup.first.record", this, TimeUnit.MILLISECONDS, m -> m.firstRecordMs)
+				.description("Tiempo desde el arranque de la JVM hasta el primer registro recibido")
+				.register(registry);
+	}
+
+	// Interceptor que avisa del primer registro, para usar en el contenedor junto a
+	// los demas interceptores
+	public <K, V> FirstRecordInterceptor<K, V> interceptor() {
+		return new FirstRecordInterceptor<>();
+	}
+
+	@Override
+	public void setApplicationContext(ApplicationContext context) {
+		this.context = context;
+	}
+
+	@Override
+	public void onApplicationEvent(ApplicationReadyEvent event) {
+		readyMs = System.currentTimeMillis() - jvmStart;
+		LOG.info("Aplicación lista a los {} ms, RSS {} MB", readyMs, rss() >> 20);
+	}
+
+	private synchronized void firstRecord() {
+		if (firstRecordMs >= 0)
+			return;
+		firstRecordMs = System.currentTimeMillis() - jvmStart;
+		final long rss = rss();
+		LOG.info("Primer registro recibido a los {} ms, RSS {} MB", firstRecordMs, rss >> 20);
+		if (!output.isEmpty())
+			write(rss);
+		if (exitAfterFirstRecord) {
+			// No se puede parar la aplicación desde el hilo consumidor, que tiene que
+			// terminar para que se paren los contenedores
+			new Thread(() -> System.exit(SpringApplication.exit(context)), "startup-exit").start();
+		}
+	}
+
+	private void write(long rss) {
+		final Map<String, Object> report = new LinkedHashMap<>();
+		report.put("readyMs", readyMs);
+		report.put("firstRecordMs", firstRecordMs);
+		report.put("rssBytes", rss);
+		report.put("heapUsedBytes", Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory());
+		try {
+			final File file = new File(output);
+			if (file.getParentFile() != null)
+				file.getParentFile().mkdirs();
+			new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(file, report);
+		} catch (final IOException e) {
+			LOG.warn("No se pudo escribir {}", output, e);
+		}
+	}
+
+	// Memoria residente del proceso segun /proc/self/status (solo en Linux), o -1
+	static long rss() {
+		try (BufferedReader reader = Files.newBufferedReader(Paths.get("/proc/self/status"),
+				StandardCharsets.US_ASCII)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith("VmRSS:"))
+					return Long.parseLong(line.substring(6).replace("kB", "").trim()) * 1024;
+			}
+		} catch (final IOException | NumberFormatException e) {
+			// Sin dato
+		}
+		return -1;
+	}
+
+	public final class FirstRecordInterceptor<K, V>
+			implements ConsumerAwareRecordInterceptor<K, V>, BatchInterceptor<K, V> {
+
+		private FirstRecordInterceptor() {
+		}
+
+		@Override
+		public ConsumerRecord<K, V> intercept(ConsumerRecord<K, V> record, Consumer<K, V> consumer) {
+			if (firstRecordMs < 0)
+				firstRecord();
+			return record;
+		}
+
+		@Override
+		public ConsumerRecords<K, V> intercept(ConsumerRecords<K, V> batch, Consumer<K, V> consumer) {
+			if (firstRecordMs < 0)
+				firstRecord();
+			return batch;
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package com.euge.kafka;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+// Acceso a los hilos virtuales de Java 21. El proyecto compila para Java 8, asi
+// que se usan por reflexión; en un JDK sin hilos virtuales isAvailable()
+// devuelve false y hay que seguir con hilos de plataforma
+public final class VirtualThreads {
+
+	private static final Method OF_VIRTUAL = lookup(Thread.class, "ofVirtual");
+
+	private static final Method NAME = OF_VIRTUAL == null ? null
+			: lookup(OF_VIRTUAL.getReturnType(), "name", String.class, long.class);
+
+	private static final Method FACTORY = OF_VIRTUAL == null ? null
+			: lookup(OF_VIRTUAL.getReturnType(), "factory");
+
+	private static final Method NEW_THREAD_PER_TASK = lookup(Executors.class,
+			"newThreadPerTaskExecutor", ThreadFactory.class);
+
+	private VirtualThreads() {
+	}
+
+	public static boolean isAvailable() {
+		return OF_VIRTUAL != null && NAME != null && FACTORY != null && NEW_THREAD_PER_TASK != null;
+	}
+
+	// Factoria de hilos virtuales con nombre prefijo0, prefijo1...
+	public static ThreadFactory threadFactory(String prefix) {
+		if (!isAvailable())
+			throw new IllegalStateException("Este JDK no tiene hilos virtuales: " + System.getProperty("java.version"));
+		try {
+			final Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), prefix, 0L);
+			return (ThreadFactory) FACTORY.invoke(builder);
+		} catch (final ReflectiveOperationException e) {
+			throw new IllegalStateException("No se pudo crear la factoria de hilos virtuales", e);
+		}
+	}
+
+	// Executor que arranca un hilo virtual nuevo para cada tarea
+	public static ExecutorService newExecutor(String prefix) {
+		try {
+			return (ExecutorService) NEW_THREAD_PER_TASK.invoke(null, threadFactory(prefix));
+		} catch (final ReflectiveOperationException e) {
+			throw new IllegalStateException("No se pudo crear el executor de hilos virtuales", e);
+		}
+	}
+
+	private static Method lookup(Class<?> type, String name, Class<?>... parameterTypes) {
+		try {
+			return type.getMethod(name, parameterTypes);
+		} catch (final NoSuchMethodException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,266 @@
+package com.euge.kafka;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToLongFunction;
+
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.RebalanceInProgressException;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.listener.ConsumerAwareRebalanceListener;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+// Agregación por ventanas de tiempo y clave: numero de registros y suma de un
+// valor de cada registro. Las ventanas son de windowSizeMs y empiezan cada
+// advanceMs; con advanceMs == windowSizeMs son ventanas fijas (tumbling), con
+// advanceMs menor se solapan (sliding) y cada registro cuenta en varias.
+// El tiempo es el timestamp de los registros. Una ventana se cierra cuando el
+// tiempo de la particion supera su fin mas graceMs; los registros que llegan
+// despues para esa ventana se cuentan como tardios y se descartan. Las ventanas
+// cerradas se publican, como "inicio,fin,registros,suma" con la clave del
+// agregado, en el topico de salida.
+// El agregador consume un solo topico. El estado esta dividido por particion y
+// solo lo usa el hilo consumidor de la particion, asi que no hay sincronización. Las agregaciones estan solo en
+// memoria, y los offsets los confirma el agregador (el contenedor tiene que usar
+// AckMode.MANUAL y el agregador como ConsumerRebalanceListener): solo hasta el
+// primer registro de las ventanas abiertas, y despues de que se hayan enviado
+// los agregados publicados. Al perder la particion, o tras una caida, el nuevo
+// dueño vuelve a leer los registros de las ventanas abiertas y las reconstruye;
+// el tiempo de la particion se guarda en los metadatos del offset para que las
+// ventanas ya publicadas sigan cerradas. Tras una caida se pueden volver a
+// publicar las ventanas cerradas desde la ultima confirmación (al menos una vez)
+public class WindowedAggregator implements ConsumerAwareRebalanceListener {
+
+	private static final long EMPTY = Long.MIN_VALUE;
+
+	private final long windowSizeMs;
+
+	private final long advanceMs;
+
+	private final long graceMs;
+
+	private final long emitIntervalMs;
+
+	private final ToLongFunction<String> measure;
+
+	private final String outputTopic;
+
+	private final KafkaTemplate<String, String> template;
+
+	private final Counter lateRecords;
+
+	private final Counter emitted;
+
+	// Por numero de particion, para no crear un TopicPartition por registro
+	private final Map<Integer, PartitionWindows> partitions = new ConcurrentHashMap<>();
+
+	public WindowedAggregator(long windowSizeMs, long advanceMs, long graceMs, long emitIntervalMs,
+			ToLongFunction<String> measure, String outputTopic, KafkaTemplate<String, String> template,
+			MeterRegistry registry) {
+		if (advanceMs <= 0 || advanceMs > windowSizeMs)
+			throw new IllegalArgumentException("advanceMs tiene que estar entre 1 y windowSizeMs");
+		if (graceMs < 0)
+			throw new IllegalArgumentException("graceMs no puede ser negativo");
+		this.windowSizeMs = windowSizeMs;
+		this.advanceMs = advanceMs;
+		this.graceMs = graceMs;
+		this.emitIntervalMs = emitIntervalMs;
+		this.measure = measure;
+		this.outputTopic = outputTopic;
+		this.template = template;
+		this.lateRecords = Counter.builder("kafka.aggregation.late").tag("topic", outputTopic)
+				.description("Registros descartados por llegar despues de cerrarse su ventana").register(registry);
+		this.emitted = Counter.builder("kafka.aggregation.emitted").tag("topic", outputTopic)
+				.description("Agregados publicados en el topico de salida").register(registry);
+	}
+
+	// Se llama desde el hilo consumidor de la particion del registro
+	public void add(ConsumerRecord<String, String> record, Consumer<?, ?> consumer) {
+		PartitionWindows windows = partitions.get(record.partition());
+		if (windows == null) {
+			windows = new PartitionWindows(new TopicPartition(record.topic(), record.partition()));
+			partitions.put(record.partition(), windows);
+		}
+		windows.add(record.key() == null ? "" : record.key(), record.timestamp(), measure.applyAsLong(record.value()),
+				record.offset());
+		if (System.currentTimeMillis() >= windows.nextEmit)
+			windows.emitAndCommit(consumer);
+	}
+
+	// La particion no ha recibido registros en idleMs. Su tiempo avanza lo mismo
+	// que el reloj desde el ultimo registro, de modo que sus ventanas se cierran
+	// aunque otras particiones del mismo consumidor sigan recibiendo registros
+	public void punctuate(TopicPartition tp, long idleMs, Consumer<?, ?> consumer) {
+		final PartitionWindows windows = partitions.get(tp.partition());
+		if (windows == null)
+			return;
+		if (windows.recordTime != EMPTY)
+			windows.advanceTo(windows.recordTime + idleMs);
+		windows.emitAndCommit(consumer);
+	}
+
+	// El tiempo de la particion se recupera de los metadatos del offset confirmado
+	@Override
+	public void onPartitionsAssigned(Consumer<?, ?> consumer, Collection<TopicPartition> assigned) {
+		final Map<TopicPartition, OffsetAndMetadata> committed = assigned.isEmpty() ? Collections.emptyMap()
+				: consumer.committed(new HashSet<>(assigned));
+		for (final TopicPartition tp : assigned) {
+			final PartitionWindows windows = new PartitionWindows(tp);
+			final OffsetAndMetadata offset = committed.get(tp);
+			if (offset != null && !offset.metadata().isEmpty())
+				windows.streamTime = Long.parseLong(offset.metadata());
+			partitions.put(tp.partition(), windows);
+		}
+	}
+
+	// Se publican las ventanas cerradas y se confirma hasta las abiertas, que se
+	// descartan: el nuevo dueño las reconstruye desde ese offset, asi que ninguna
+	// ventana se publica dos veces
+	@Override
+	public void onPartitionsRevokedBeforeCommit(Consumer<?, ?> consumer, Collection<TopicPartition> revoked) {
+		for (final TopicPartition tp : revoked) {
+			final PartitionWindows windows = partitions.remove(tp.partition());
+			if (windows != null)
+				windows.emitAndCommit(consumer);
+		}
+	}
+
+	// Las particiones perdidas ya tienen otro dueño y no se pueden confirmar
+	@Override
+	public void onPartitionsLost(Consumer<?, ?> consumer, Collection<TopicPartition> lost) {
+		for (final TopicPartition tp : lost)
+			partitions.remove(tp.partition());
+	}
+
+	// Ventanas de una particion en un anillo de huecos: el hueco de una ventana
+	// depende de su inicio, y hay huecos para todas las ventanas que pueden estar
+	// abiertas a la vez
+	private final class PartitionWindows {
+
+		private final TopicPartition tp;
+
+		private final long[] starts;
+
+		// Offset del primer registro de cada ventana abierta
+		private final long[] firstOffsets;
+
+		private final LongAggregateMap[] aggregates;
+
+		// Tiempo de la particion: el mayor timestamp visto, o el que se le ha dado
+		// por inactividad
+		private long streamTime = EMPTY;
+
+		// Mayor timestamp de los registros recibidos
+		private long recordTime = EMPTY;
+
+		// Siguiente offset a leer, o -1 si aun no se ha recibido ningun registro
+		private long nextOffset = -1;
+
+		private boolean emittedSinceCommit;
+
+		private long nextEmit;
+
+		PartitionWindows(TopicPartition tp) {
+			this.tp = tp;
+			final int slots = (int) ((windowSizeMs + graceMs) / advanceMs) + 2;
+			starts = new long[slots];
+			Arrays.fill(starts, EMPTY);
+			firstOffsets = new long[slots];
+			aggregates = new LongAggregateMap[slots];
+			for (int i = 0; i < slots; i++)
+				aggregates[i] = new LongAggregateMap(64);
+			nextEmit = System.currentTimeMillis() + emitIntervalMs;
+		}
+
+		void add(String key, long timestamp, long value, long offset) {
+			nextOffset = offset + 1;
+			if (timestamp > recordTime)
+				recordTime = timestamp;
+			if (timestamp > streamTime)
+				streamTime = timestamp;
+			// Ventanas que contienen el registro: las que empiezan en
+			// (timestamp - windowSizeMs, timestamp], de la mas reciente a la mas antigua
+			boolean accepted = false;
+			for (long start = timestamp - Math.floorMod(timestamp, advanceMs); start > timestamp
+					- windowSizeMs; start -= advanceMs) {
+				// Si esta cerrada, las anteriores tambien
+				if (closed(start))
+					break;
+				slot(start, offset).add(key, value);
+				accepted = true;
+			}
+			if (!accepted)
+				lateRecords.increment();
+		}
+
+		void advanceTo(long time) {
+			if (time > streamTime)
+				streamTime = time;
+		}
+
+		// Publica las ventanas cerradas y confirma el offset del primer registro de
+		// las abiertas (o el siguiente si no hay ninguna) con el tiempo de la
+		// particion. Antes se espera a que se hayan enviado los agregados publicados
+		void emitAndCommit(Consumer<?, ?> consumer) {
+			nextEmit = System.currentTimeMillis() + emitIntervalMs;
+			long commit = nextOffset;
+			for (int i = 0; i < starts.length; i++) {
+				if (starts[i] == EMPTY)
+					continue;
+				if (closed(starts[i]))
+					emit(i);
+				else
+					commit = Math.min(commit, firstOffsets[i]);
+			}
+			if (commit < 0)
+				return;
+			if (emittedSinceCommit) {
+				template.flush();
+				emittedSinceCommit = false;
+			}
+			try {
+				consumer.commitSync(
+						Collections.singletonMap(tp, new OffsetAndMetadata(commit, Long.toString(streamTime))));
+			} catch (RebalanceInProgressException e) {
+				// Con el rebalanceo incremental el consumidor sigue recibiendo registros
+				// mientras el grupo se rebalancea, pero no puede confirmar. Se confirma en
+				// la siguiente publicación, o al revocar la particion
+			}
+		}
+
+		private boolean closed(long start) {
+			return start + windowSizeMs + graceMs <= streamTime;
+		}
+
+		private LongAggregateMap slot(long start, long offset) {
+			final int i = (int) Math.floorMod(Math.floorDiv(start, advanceMs), (long) starts.length);
+			if (starts[i] != start) {
+				// El hueco lo ocupa una ventana ya cerrada que aun no se ha publicado
+				if (starts[i] != EMPTY)
+					emit(i);
+				starts[i] = start;
+				firstOffsets[i] = offset;
+			}
+			return aggregates[i];
+		}
+
+		@SuppressWarnings("null")
+		private void emit(int i) {
+			final String window = starts[i] + "," + (starts[i] + windowSizeMs) + ",";
+			aggregates[i].forEach((key, count, sum) -> template.send(outputTopic, key, window + count + "," + sum));
+			emitted.increment(aggregates[i].size());
+			emittedSinceCommit = true;
+			aggregates[i].clear();
+			starts[i] = EMPTY;
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package com.euge.kafka;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.kafka.config.ConcurrentKafkaListenerContainerFactory;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.listener.BatchMessageListener;
+import org.springframework.kafka.listener.ConcurrentMessageListenerContainer;
+import org.springframework.kafka.listener.MessageListener;
+import org.springframework.kafka.test.context.EmbeddedKafka;
+
+// Consume los mismos registros con la factoria por registro del grupo foo y con
+// la factoria batch del grupo fooBatch, y compara los registros por segundo de
+// cada una, medidos desde el primer registro recibido hasta el ultimo
+@SpringBootTest
+@EmbeddedKafka(topics = { BatchListenerTest.RECORD_TOPIC,
+		BatchListenerTest.BATCH_TOPIC }, bootstrapServersProperty = "kafka.bootstrapAddress")
+class BatchListenerTest {
+
+	private static final Logger LOG = LoggerFactory.getLogger(BatchListenerTest.class);
+
+	static final String RECORD_TOPIC = "batch-test-record";
+
+	static final String BATCH_TOPIC = "batch-test-batch";
+
+	private static final int RECORDS = 50_000;
+
+	@Autowired
+	private KafkaTemplate<String, String> kafkaTemplate;
+
+	@Autowired
+	@Qualifier("fooKafkaListenerContainerFactory")
+	private ConcurrentKafkaListenerContainerFactory<String, String> recordFactory;
+
+	@Autowired
+	@Qualifier("fooBatchKafkaListenerContainerFactory")
+	private ConcurrentKafkaListenerContainerFactory<String, String> batchFactory;
+
+	@Test
+	void batchFactoryConsumesWholePolls() throws Exception {
+		send(RECORD_TOPIC);
+		send(BATCH_TOPIC);
+
+		final Rate perRecord = new Rate();
+		final ConcurrentMessageListenerContainer<String, String> recordContainer = container(recordFactory,
+				RECORD_TOPIC);
+		recordContainer.setupMessageListener((MessageListener<String, String>) record -> perRecord.received(1));
+		final double recordRate = perRecord.consume(recordContainer);
+
+		final Rate batch = new Rate();
+		final ConcurrentMessageListenerContainer<String, String> batchContainer = container(batchFactory, BATCH_TOPIC);
+		batchContainer
+				.setupMessageListener((BatchMessageListener<String, String>) records -> batch.received(records.size()));
+		final double batchRate = batch.consume(batchContainer);
+
+		LOG.info("Por registro: {} registros/s; batch: {} registros/s en {} lotes", (long) recordRate,
+				(long) batchRate, batch.deliveries.get());
+		assertEquals(RECORDS, perRecord.deliveries.get());
+		assertTrue(batch.deliveries.get() < RECORDS / 10, "el listener batch recibe lotes de varios registros");
+		assertTrue(batchRate > recordRate, "batch consume mas registros por segundo que por registro");
+	}
+
+	private void send(String topic) {
+		for (int i = 0; i < RECORDS; i++)
+			kafkaTemplate.send(topic, Integer.toString(i % 100), "Mensaje " + i);
+		kafkaTemplate.flush();
+	}
+
+	// Contenedor de la factoria con su propio grupo, que empieza por el principio
+	// del topico
+	private static ConcurrentMessageListenerContainer<String, String> container(
+			ConcurrentKafkaListenerContainerFactory<String, String> factory, String topic) {
+		final ConcurrentMessageListenerContainer<String, String> container = factory.createContainer(topic);
+		final Properties props = new Properties();
+		props.putAll(container.getContainerProperties().getKafkaConsumerProperties());
+		props.setProperty(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
+		container.getContainerProperties().setKafkaConsumerProperties(props);
+		container.getContainerProperties().setGroupId(topic);
+		container.setAutoStartup(false);
+		return container;
+	}
+
+	// Registros por segundo desde el primer registro hasta el ultimo
+	private static final class Rate {
+
+		private final CountDownLatch done = new CountDownLatch(RECORDS);
+
+		private final AtomicLong first = new AtomicLong();
+
+		private final AtomicInteger deliveries = new AtomicInteger();
+
+		private volatile long last;
+
+		void received(int records) {
+			first.compareAndSet(0, System.nanoTime());
+			deliveries.incrementAndGet();
+			for (int i = 0; i < records; i++)
+				done.countDown();
+			if (done.getCount() == 0)
+				last = System.nanoTime();
+		}
+
+		double consume(ConcurrentMessageListenerContainer<String, String> container) throws InterruptedException {
+			container.start();
+			try {
+				assertTrue(done.await(60, TimeUnit.SECONDS), "se consumen todos los registros");
+			} finally {
+				container.stop();
+			}
+			return RECORDS * 1e9 / (last - first.get());
+		}
+	}
+}
@@ -0,0 +1,40 @@
+package com.euge.kafka;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.apache.kafka.common.errors.SerializationException;
+import org.junit.jupiter.api.Test;
+
+class GreetingDeserializerTest {
+
+	private static final String TOPIC = "greeting";
+
+	private final GreetingSerializer serializer = new GreetingSerializer();
+
+	private final GreetingDeserializer deserializer = new GreetingDeserializer();
+
+	@Test
+	void roundTrip() {
+		final Greeting greeting = deserializer.deserialize(TOPIC,
+				serializer.serialize(TOPIC, new Greeting("Greetings", "Wörld!")));
+		assertEquals("Greetings", greeting.getMsg());
+		assertEquals("Wörld!", greeting.getName());
+
+		final Greeting empty = deserializer.deserialize(TOPIC, serializer.serialize(TOPIC, new Greeting(null, "")));
+		assertNull(empty.getMsg());
+		assertEquals("", empty.getName());
+	}
+
+	// Una longitud cercana a Integer.MAX_VALUE no puede desbordar la comprobación
+	@Test
+	void corruptLengthIsRejected() {
+		final byte[] data = serializer.serialize(TOPIC, new Greeting("Greetings", "World!"));
+		data[1] = 0x7F;
+		data[2] = (byte) 0xFF;
+		data[3] = (byte) 0xFF;
+		data[4] = (byte) 0xFE;
+		assertThrows(SerializationException.class, () -> deserializer.deserialize(TOPIC, data));
+	}
+}
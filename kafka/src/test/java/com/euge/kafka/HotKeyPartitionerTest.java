@@ -0,0 +1,105 @@
+package com.euge.kafka;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.kafka.clients.producer.Partitioner;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.Node;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+// El particionador se crea como lo crea KafkaProducer, a partir de la
+// ProducerConfig con las claves hotkey.*
+class HotKeyPartitionerTest {
+
+	private static final String TOPIC = "partitioned";
+
+	private static final String OTHER = "other";
+
+	private final MeterRegistry registry = new SimpleMeterRegistry();
+
+	// Kafka avisa de las claves que nadie lee ("isn't a known config"). Las lee el
+	// particionador en configure, asi que cuentan como usadas
+	@Test
+	void readsAllItsConfigs() {
+		final ProducerConfig config = config();
+		config.getConfiguredInstance(ProducerConfig.PARTITIONER_CLASS_CONFIG, Partitioner.class).close();
+		for (final String unused : config.unused())
+			assertFalse(unused.startsWith("hotkey."), unused + " no se usa");
+	}
+
+	@Test
+	void closeRemovesMeters() {
+		final Partitioner partitioner = config().getConfiguredInstance(ProducerConfig.PARTITIONER_CLASS_CONFIG,
+				Partitioner.class);
+		final Cluster cluster = cluster(5);
+		for (int i = 0; i < 2000; i++) {
+			final byte[] key = (i % 2 == 0 ? "hot" : "key-" + i).getBytes(StandardCharsets.UTF_8);
+			partitioner.partition(TOPIC, key, key, null, null, cluster);
+		}
+		assertEquals(1, registry.find("kafka.partitioner.skew").tag("topic", TOPIC).gauges().size());
+		assertTrue(registry.find("kafka.partitioner.hot.records").tag("topic", TOPIC).counter().count() > 0);
+
+		partitioner.close();
+		assertTrue(registry.find("kafka.partitioner.skew").gauges().isEmpty());
+		assertTrue(registry.find("kafka.partitioner.hot.records").counters().isEmpty());
+	}
+
+	// Una clave caliente en un topico no lo es en otro en el que casi no se envia
+	@Test
+	void hotKeysArePerTopic() {
+		final Partitioner partitioner = config().getConfiguredInstance(ProducerConfig.PARTITIONER_CLASS_CONFIG,
+				Partitioner.class);
+		final Cluster cluster = cluster(5);
+		for (int i = 0; i < 2000; i++) {
+			final byte[] key = (i % 2 == 0 ? "hot" : "key-" + i).getBytes(StandardCharsets.UTF_8);
+			partitioner.partition(TOPIC, key, key, null, null, cluster);
+		}
+		for (int i = 0; i < 2000; i++) {
+			final byte[] key = (i % 200 == 0 ? "hot" : "other-" + i).getBytes(StandardCharsets.UTF_8);
+			partitioner.partition(OTHER, key, key, null, null, cluster);
+		}
+		assertTrue(registry.find("kafka.partitioner.hot.records").tag("topic", TOPIC).counter().count() > 0);
+		assertEquals(0, registry.find("kafka.partitioner.hot.records").tag("topic", OTHER).counter().count());
+		partitioner.close();
+	}
+
+	private ProducerConfig config() {
+		final Map<String, Object> props = new HashMap<>();
+		props.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, "localhost:9092");
+		props.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class);
+		props.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, StringSerializer.class);
+		props.put(ProducerConfig.PARTITIONER_CLASS_CONFIG, HotKeyPartitioner.class);
+		props.put(HotKeyPartitioner.RELAXED_TOPICS_CONFIG, TOPIC);
+		props.put(HotKeyPartitioner.SUBPARTITIONS_CONFIG, 3);
+		props.put(HotKeyPartitioner.HOT_SHARE_CONFIG, 0.05);
+		props.put(HotKeyPartitioner.DECAY_MS_CONFIG, 10_000L);
+		props.put(HotKeyPartitioner.METER_REGISTRY_CONFIG, registry);
+		return new ProducerConfig(props);
+	}
+
+	private static Cluster cluster(int partitions) {
+		final Node node = new Node(0, "localhost", 9092);
+		final List<PartitionInfo> infos = new ArrayList<>();
+		for (final String topic : Arrays.asList(TOPIC, OTHER))
+			for (int i = 0; i < partitions; i++)
+				infos.add(new PartitionInfo(topic, i, node, new Node[] { node }, new Node[] { node }));
+		return new Cluster("test", Collections.singletonList(node), infos, Collections.emptySet(),
+				Collections.emptySet());
+	}
+}
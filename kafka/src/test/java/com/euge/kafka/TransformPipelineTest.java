@@ -0,0 +1,148 @@
+package com.euge.kafka;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.CommitFailedException;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.StickyAssignor;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.junit.jupiter.api.Test;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.test.EmbeddedKafkaBroker;
+import org.springframework.kafka.test.context.EmbeddedKafka;
+import org.springframework.kafka.test.utils.KafkaTestUtils;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.core.read.ListAppender;
+
+// Pipeline consumir-transformar-producir del grupo transform. A mitad de los
+// envios entra otro consumidor en el grupo, que se lleva particiones sin
+// confirmar nada y luego sale: dos rebalanceos con lotes en curso. Cada mensaje
+// tiene que aparecer una sola vez en el topico de salida, incluido un tombstone,
+// y ninguna transacción puede fallar al confirmar sus offsets por una
+// generación del grupo caducada
+@SpringBootTest(properties = { "kafka.transaction.enabled=true", "listener.log.sampleRate=1000",
+		"kafka.consumer.groups[transform][auto.offset.reset]=earliest" })
+@EmbeddedKafka(bootstrapServersProperty = "kafka.bootstrapAddress", brokerProperties = {
+		"transaction.state.log.replication.factor=1", "transaction.state.log.min.isr=1" })
+class TransformPipelineTest {
+
+	private static final int RECORDS = 2000;
+
+	@Autowired
+	private EmbeddedKafkaBroker broker;
+
+	@Autowired
+	private KafkaTemplate<String, String> kafkaTemplate;
+
+	@Value(value = "${partitioned.topic.name}")
+	private String partitionedTopicName;
+
+	@Value(value = "${transformed.topic.name}")
+	private String transformedTopicName;
+
+	@Test
+	void noDuplicatesAfterRebalance() throws Exception {
+		final ListAppender<ILoggingEvent> errors = new ListAppender<>();
+		errors.start();
+		final Logger root = (Logger) LoggerFactory.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME);
+		root.addAppender(errors);
+		try {
+			transform();
+		} finally {
+			root.detachAppender(errors);
+		}
+		for (final ILoggingEvent event : errors.list)
+			for (IThrowableProxy cause = event.getThrowableProxy(); cause != null; cause = cause.getCause())
+				assertNotEquals(CommitFailedException.class.getName(), cause.getClassName(),
+						() -> "confirmación de offsets fallida: " + event.getFormattedMessage());
+	}
+
+	private void transform() throws Exception {
+		send(0, RECORDS / 2);
+		try (Consumer<String, String> intruder = consumer("transform")) {
+			final List<TopicPartition> taken = new ArrayList<>();
+			intruder.subscribe(Collections.singleton(partitionedTopicName), new ConsumerRebalanceListener() {
+
+				@Override
+				public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
+					taken.addAll(partitions);
+				}
+
+				@Override
+				public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+				}
+			});
+			final long deadline = System.currentTimeMillis() + 30_000;
+			while (taken.isEmpty() && System.currentTimeMillis() < deadline)
+				intruder.poll(Duration.ofMillis(100));
+			send(RECORDS / 2, RECORDS);
+			kafkaTemplate.send(partitionedTopicName, "tombstone", null);
+			kafkaTemplate.flush();
+			for (int i = 0; i < 10; i++)
+				intruder.poll(Duration.ofMillis(100));
+		}
+
+		final Map<String, Integer> copies = new HashMap<>();
+		boolean tombstone = false;
+		try (Consumer<String, String> output = consumer("transform-test")) {
+			output.subscribe(Collections.singleton(transformedTopicName));
+			final long deadline = System.currentTimeMillis() + 60_000;
+			while ((copies.size() < RECORDS || !tombstone) && System.currentTimeMillis() < deadline) {
+				for (final ConsumerRecord<String, String> record : output.poll(Duration.ofMillis(500))) {
+					if ("tombstone".equals(record.key())) {
+						assertNull(record.value());
+						tombstone = true;
+					} else
+						copies.merge(record.value(), 1, Integer::sum);
+				}
+			}
+			// Lo que llegue despues serian duplicados
+			for (final ConsumerRecord<String, String> record : output.poll(Duration.ofSeconds(2)))
+				copies.merge(record.value(), 1, Integer::sum);
+		}
+		assertEquals(RECORDS, copies.size());
+		for (int i = 0; i < RECORDS; i++)
+			assertEquals(1, copies.getOrDefault("MENSAJE " + i, 0), "copias de MENSAJE " + i);
+		assertTrue(tombstone, "el tombstone llega al topico de salida");
+	}
+
+	private void send(int from, int to) {
+		for (int i = from; i < to; i++)
+			kafkaTemplate.send(partitionedTopicName, Integer.toString(i), "Mensaje " + i);
+		kafkaTemplate.flush();
+	}
+
+	// Usa el mismo protocolo de asignación que transactionalKafkaListenerContainerFactory,
+	// para poder entrar en su grupo
+	private Consumer<String, String> consumer(String group) {
+		final Map<String, Object> props = KafkaTestUtils.consumerProps(group, "false", broker);
+		props.put(ConsumerConfig.ISOLATION_LEVEL_CONFIG, "read_committed");
+		props.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
+		props.put(ConsumerConfig.PARTITION_ASSIGNMENT_STRATEGY_CONFIG,
+				Collections.singletonList(StickyAssignor.class));
+		return new KafkaConsumer<>(props, new StringDeserializer(), new StringDeserializer());
+	}
+}